@@ -0,0 +1,355 @@
+package com.github.chen0040.lof;
+
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataRow;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Approximate LOCI (aLOCI, Papadimitriou, Kitagawa, Gibbons and Faloutsos, "LOCI: Fast Outlier Detection Using the
+ * Local Correlation Integral", 2003).
+ *
+ * The batch is scaled into the unit cube and overlaid with several randomly shifted grids. Each grid is a quad-tree
+ * whose cells at level l have side r = 2^-l; only the box counts of the cells are kept, in one hash table per grid
+ * and level. For a point and a level, the counting cell (side alpha * r, alpha = 2^-lAlpha) is the cell containing the
+ * point whose center is closest to it, over all grids, and its count approximates n(p, alpha * r). The sampling cell
+ * (side r) is the cell, over all grids, whose center is closest to the center of the counting cell. The sums S_q of
+ * the q-th powers of the counts of its subcells at the counting level give nhat = S_2 / S_1 and
+ * sigma_nhat = sqrt(S_3 / S_1 - nhat^2). A point is flagged when MDEF > kSigma * sigma_MDEF at any level whose
+ * sampling cell holds at least nMin points; the largest MDEF / sigma_MDEF over those levels is kept in the "ALOCI"
+ * target column so that the points can also be ranked.
+ *
+ * Building the tables and scoring both take time linear in the batch size for a fixed number of grids and levels.
+ */
+@Getter
+@Setter
+public class ALOCI {
+
+    private int grids = 10;
+    private int levels = 10; // sampling levels 0 .. levels, counting levels lAlpha .. levels + lAlpha
+    private int lAlpha = 4; // alpha = 2^-lAlpha
+    private int nMin = 20;
+    private double kSigma = 3;
+    private long seed = 42L;
+
+    // builds the grids and scores the rows over the executor; null runs them on the calling thread
+    private ExecutorService executor = ParallelRows.sharedExecutor();
+
+    @Setter(AccessLevel.NONE)
+    private DataFrame model;
+
+    public ALOCI(){
+    }
+
+    public double getAlpha(){
+        return 1.0 / (1 << lAlpha);
+    }
+
+    public DataFrame fitAndTransform(DataFrame batch) {
+        this.model = batch.makeCopy();
+
+        int m = model.rowCount();
+        if(levels + lAlpha > 30) throw new IllegalArgumentException("levels + lAlpha must not exceed 30");
+
+        DataMatrix matrix = DataMatrix.of(model);
+        int dimension = matrix.dimension();
+        double[] points = scaleToUnitCube(matrix);
+
+        Random random = new Random(seed);
+        double[][] shifts = new double[grids][dimension];
+        for(int g = 1; g < grids; ++g){
+            for(int d = 0; d < dimension; ++d){
+                shifts[g][d] = random.nextDouble();
+            }
+        }
+
+        Grid[] gridTables = new Grid[grids];
+        ParallelRows.forEach(executor, grids, 1, (from, to) -> {
+            for(int g = from; g < to; ++g){
+                gridTables[g] = new Grid(points, m, dimension, shifts[g]);
+            }
+        });
+
+        double[] scores = new double[m];
+        ParallelRows.forEach(executor, m, (from, to) -> {
+            int[] cell = new int[dimension];
+            double[] center = new double[dimension];
+            for(int i = from; i < to; ++i){
+                scores[i] = score(points, i * dimension, gridTables, cell, center);
+            }
+        });
+
+        for(int i=0; i < m; ++i){
+            DataRow tuple = model.row(i);
+            tuple.setTargetCell("ALOCI", scores[i]);
+            tuple.setCategoricalTargetCell("anomaly", scores[i] > kSigma ? "1" : "0");
+        }
+
+        return model;
+    }
+
+    // the largest MDEF / sigma_MDEF over the levels whose sampling cell holds at least nMin points
+    private double score(double[] points, int offset, Grid[] gridTables, int[] cell, double[] center){
+        double maxRatio = Double.NEGATIVE_INFINITY;
+        for(int l = 0; l <= levels; ++l){
+            int countingLevel = l + lAlpha;
+
+            // counting cell: the cell containing the point with the closest center, over all grids
+            int count = 0;
+            int countingGrid = -1;
+            double closest = Double.POSITIVE_INFINITY;
+            for(int g = 0; g < grids; ++g){
+                Grid grid = gridTables[g];
+                double distance = grid.locate(points, offset, countingLevel, cell);
+                if(distance < closest){
+                    closest = distance;
+                    countingGrid = g;
+                    count = grid.counts[l].get(grid.key(countingLevel, cell));
+                }
+            }
+            gridTables[countingGrid].center(points, offset, countingLevel, center);
+
+            // sampling cell: the cell with the center closest to the center of the counting cell, over all grids
+            int sampling = -1;
+            Grid samplingGrid = null;
+            closest = Double.POSITIVE_INFINITY;
+            for(int g = 0; g < grids; ++g){
+                Grid grid = gridTables[g];
+                double distance = grid.locate(center, 0, l, cell);
+                if(distance < closest){
+                    int slot = grid.samples[l].slot(grid.key(l, cell));
+                    if(slot < 0) continue;
+                    closest = distance;
+                    sampling = slot;
+                    samplingGrid = grid;
+                }
+            }
+            if(samplingGrid == null) continue;
+
+            CellTable table = samplingGrid.samples[l];
+            double s1 = table.values[sampling];
+            if(s1 < nMin) continue;
+            double s2 = table.sum2[sampling];
+            double s3 = table.sum3[sampling];
+
+            double nhat = s2 / s1;
+            double sigma_nhat = Math.sqrt(Math.max(0, s3 / s1 - nhat * nhat));
+            double MDEF = 1 - count / nhat;
+            double sigma_MDEF = sigma_nhat / nhat;
+
+            if(sigma_MDEF > 0){
+                maxRatio = Math.max(maxRatio, MDEF / sigma_MDEF);
+            } else if(MDEF > 0){
+                maxRatio = Double.POSITIVE_INFINITY;
+            }
+        }
+        return maxRatio;
+    }
+
+    // scales all dimensions by the same factor so that the batch fits in [0, 1]^dimension
+    private static double[] scaleToUnitCube(DataMatrix matrix){
+        int m = matrix.rowCount();
+        int dimension = matrix.dimension();
+        double[] min = new double[dimension];
+        double[] max = new double[dimension];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for(int i=0; i < m; ++i){
+            for(int d=0; d < dimension; ++d){
+                double value = matrix.get(i, d);
+                min[d] = Math.min(min[d], value);
+                max[d] = Math.max(max[d], value);
+            }
+        }
+
+        double range = 0;
+        for(int d=0; d < dimension; ++d){
+            range = Math.max(range, max[d] - min[d]);
+        }
+        // keep the points strictly below 1 so that the largest one stays in the last cell of every level
+        double scale = range > 0 ? Math.nextDown(1.0) / range : 1;
+
+        double[] points = new double[m * dimension];
+        for(int i=0; i < m; ++i){
+            for(int d=0; d < dimension; ++d){
+                points[i * dimension + d] = (matrix.get(i, d) - min[d]) * scale;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Box counts of one shifted grid. counts[l] holds the number of points in each cell at the counting level
+     * l + lAlpha; samples[l] holds, for each cell at level l, the number of points S_1 and the sums S_2 and S_3 of
+     * the squared and cubed counts of its subcells at level l + lAlpha.
+     */
+    private class Grid {
+        private final double[] shift;
+        private final CellTable[] counts;
+        private final CellTable[] samples;
+
+        Grid(double[] points, int m, int dimension, double[] shift){
+            this.shift = shift;
+            counts = new CellTable[levels + 1];
+            samples = new CellTable[levels + 1];
+
+            int[] cell = new int[dimension];
+            long[] keys = new long[m];
+            for(int l = 0; l <= levels; ++l){
+                int countingLevel = l + lAlpha;
+                CellTable count = new CellTable(false);
+                for(int i=0; i < m; ++i){
+                    locate(points, i * dimension, countingLevel, cell);
+                    keys[i] = key(countingLevel, cell);
+                    count.add(keys[i], 1);
+                }
+                counts[l] = count;
+
+                // a subcell with c points contributes c^2 to S_2 and c^3 to S_3, that is c and c^2 for each of its points
+                CellTable sample = new CellTable(true);
+                for(int i=0; i < m; ++i){
+                    locate(points, i * dimension, l, cell);
+                    double c = count.get(keys[i]);
+                    sample.add(key(l, cell), 1, c, c * c);
+                }
+                samples[l] = sample;
+            }
+        }
+
+        // writes the cell containing x at the level into cell and returns the distance from x to the cell center
+        double locate(double[] x, int offset, int level, int[] cell){
+            double side = 1.0 / (1 << level);
+            double distance = 0;
+            for(int d = 0; d < cell.length; ++d){
+                double y = x[offset + d] + shift[d];
+                cell[d] = (int) Math.floor(y * (1 << level));
+                double diff = y - (cell[d] + 0.5) * side;
+                distance += diff * diff;
+            }
+            return distance;
+        }
+
+        // center, in unshifted coordinates, of the cell containing x at the level
+        void center(double[] x, int offset, int level, double[] center){
+            double side = 1.0 / (1 << level);
+            for(int d = 0; d < center.length; ++d){
+                double y = x[offset + d] + shift[d];
+                center[d] = (Math.floor(y * (1 << level)) + 0.5) * side - shift[d];
+            }
+        }
+
+        long key(int level, int[] cell){
+            long h = 0x9E3779B97F4A7C15L * (level + 1);
+            for(int value : cell){
+                h = mix(h ^ value);
+            }
+            return h;
+        }
+    }
+
+    private static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Open-addressing hash table from a 64-bit cell key to a count and, optionally, two sums. Keys are hashes of the
+     * cell coordinates; two distinct cells share a key with probability about 2^-64 per pair.
+     */
+    private static class CellTable {
+        private long[] keys = new long[16];
+        private boolean[] used = new boolean[16];
+        private double[] values = new double[16];
+        private double[] sum2;
+        private double[] sum3;
+        private int size = 0;
+
+        CellTable(boolean sums){
+            if(sums){
+                sum2 = new double[16];
+                sum3 = new double[16];
+            }
+        }
+
+        int slot(long key){
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while(used[i]){
+                if(keys[i] == key) return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        int get(long key){
+            int i = slot(key);
+            return i < 0 ? 0 : (int) values[i];
+        }
+
+        void add(long key, double value){
+            int i = insert(key);
+            values[i] += value;
+        }
+
+        void add(long key, double value, double value2, double value3){
+            int i = insert(key);
+            values[i] += value;
+            sum2[i] += value2;
+            sum3[i] += value3;
+        }
+
+        private int insert(long key){
+            if(2 * (size + 1) > keys.length){
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while(used[i]){
+                if(keys[i] == key) return i;
+                i = (i + 1) & mask;
+            }
+            used[i] = true;
+            keys[i] = key;
+            size++;
+            return i;
+        }
+
+        private void grow(){
+            long[] oldKeys = keys;
+            boolean[] oldUsed = used;
+            double[] oldValues = values, oldSum2 = sum2, oldSum3 = sum3;
+
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            used = new boolean[capacity];
+            values = new double[capacity];
+            if(oldSum2 != null){
+                sum2 = new double[capacity];
+                sum3 = new double[capacity];
+            }
+
+            int mask = capacity - 1;
+            for(int j = 0; j < oldKeys.length; ++j){
+                if(!oldUsed[j]) continue;
+                int i = (int) oldKeys[j] & mask;
+                while(used[i]){
+                    i = (i + 1) & mask;
+                }
+                used[i] = true;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                if(oldSum2 != null){
+                    sum2[i] = oldSum2[j];
+                    sum3[i] = oldSum3[j];
+                }
+            }
+        }
+    }
+}
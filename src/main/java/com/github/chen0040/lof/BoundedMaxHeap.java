@@ -0,0 +1,157 @@
+package com.github.chen0040.lof;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Bounded max-heap that keeps the k candidates with the smallest distances seen so far. Row indices and distances
+ * are held in parallel primitive arrays, and a candidate that is not closer than the current k-th distance is
+ * rejected without touching the heap, so a search allocates nothing once the heap has grown to k.
+ *
+ * A heap is meant to be reset and reused across queries; forThread() hands out one instance per thread.
+ */
+public class BoundedMaxHeap {
+
+    private static final ThreadLocal<BoundedMaxHeap> heaps = ThreadLocal.withInitial(BoundedMaxHeap::new);
+
+    private int[] index;
+    private double[] distance;
+    private int k;
+    private int size;
+    private boolean sorted;
+
+    public BoundedMaxHeap(){
+        this(16);
+    }
+
+    public BoundedMaxHeap(int k){
+        index = new int[Math.max(k, 1)];
+        distance = new double[Math.max(k, 1)];
+        reset(k);
+    }
+
+    public static BoundedMaxHeap forThread(int k){
+        BoundedMaxHeap heap = heaps.get();
+        heap.reset(k);
+        return heap;
+    }
+
+    public void reset(int k){
+        this.k = Math.max(k, 0);
+        if(this.k > index.length){
+            index = new int[this.k];
+            distance = new double[this.k];
+        }
+        size = 0;
+        sorted = false;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int capacity(){
+        return k;
+    }
+
+    public boolean isFull(){
+        return size == k;
+    }
+
+    // distance a candidate has to beat to enter the heap
+    public double bound(){
+        return size < k ? Double.POSITIVE_INFINITY : distance[0];
+    }
+
+    public boolean offer(int i, double d){
+        if(size < k){
+            index[size] = i;
+            distance[size] = d;
+            swim(size++);
+            return true;
+        }
+        if(k == 0 || !(d < distance[0])) return false;
+
+        index[0] = i;
+        distance[0] = d;
+        sink(0, size);
+        return true;
+    }
+
+    /**
+     * Orders the kept candidates ascending by distance in place; index(j) and distance(j) then return the j-th
+     * nearest. The heap must be reset before it is offered new candidates.
+     */
+    public BoundedMaxHeap sort(){
+        if(sorted) return this;
+        for(int n = size - 1; n > 0; --n){
+            exchange(0, n);
+            sink(0, n);
+        }
+        sorted = true;
+        return this;
+    }
+
+    // turns squared euclidean surrogates into euclidean distances once the search is done
+    void sqrtDistances(){
+        sort();
+        for(int j=0; j < size; ++j){
+            distance[j] = Math.sqrt(distance[j]);
+        }
+    }
+
+    public int index(int j){
+        return index[j];
+    }
+
+    public double distance(int j){
+        return distance[j];
+    }
+
+    // backing arrays, valid over [0, size()); only meaningful once sorted
+    int[] indices(){
+        return index;
+    }
+
+    double[] distances(){
+        return distance;
+    }
+
+    public Neighbors toNeighbors(){
+        sort();
+        return new Neighbors(Arrays.copyOf(index, size), Arrays.copyOf(distance, size));
+    }
+
+    private void swim(int c){
+        while(c > 0){
+            int parent = (c - 1) >>> 1;
+            if(distance[c] > distance[parent]){
+                exchange(c, parent);
+                c = parent;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void sink(int c, int n){
+        while(2 * c + 1 < n){
+            int child = 2 * c + 1;
+            if(child + 1 < n && distance[child + 1] > distance[child]){
+                child++;
+            }
+            if(distance[child] > distance[c]){
+                exchange(c, child);
+                c = child;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void exchange(int i, int j){
+        int ti = index[i]; index[i] = index[j]; index[j] = ti;
+        double td = distance[i]; distance[i] = distance[j]; distance[j] = td;
+    }
+}
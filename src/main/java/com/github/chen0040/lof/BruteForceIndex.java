@@ -0,0 +1,76 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+
+
+/**
+ * Linear scan over every row of the batch; works with any distance measure.
+ */
+public class BruteForceIndex implements NeighborIndex {
+    private final DataMatrix matrix;
+    private final DistanceMeasure distanceMeasure;
+
+    public BruteForceIndex(DataMatrix matrix, DistanceMeasure distanceMeasure){
+        this.matrix = matrix;
+        this.distanceMeasure = distanceMeasure;
+    }
+
+    @Override
+    public DataMatrix matrix() {
+        return matrix;
+    }
+
+    @Override
+    public void knn(DataMatrix query, int row, BoundedMaxHeap heap) {
+        DataRow self = query.row(row);
+        int N = matrix.rowCount();
+        if(distanceMeasure == null){
+            // search on squared distances and take the square root of the k survivors only
+            int dimension = matrix.dimension();
+            double[] data = matrix.data();
+            double[] x = query.data();
+            int offset = query.offset(row);
+            if(dimension >= DistanceKernels.EARLY_ABANDON_DIMENSION){
+                for(int i=0; i < N; ++i){
+                    if(matrix.row(i) == self) continue;
+                    heap.offer(i, DistanceKernels.squaredEuclidean(data, matrix.offset(i), x, offset, dimension, heap.bound()));
+                }
+            } else {
+                double[] buffer = DistanceKernels.blockBuffer();
+                for(int from = 0; from < N; from += DistanceKernels.BLOCK_SIZE){
+                    int to = Math.min(N, from + DistanceKernels.BLOCK_SIZE);
+                    DistanceKernels.squaredEuclidean(x, offset, data, from, to, dimension, buffer);
+                    for(int i = from; i < to; ++i){
+                        if(matrix.row(i) == self) continue;
+                        heap.offer(i, buffer[i - from]);
+                    }
+                }
+            }
+            heap.sqrtDistances();
+            return;
+        }
+        for(int i=0; i < N; ++i){
+            if(matrix.row(i) == self) continue;
+            heap.offer(i, DistanceMeasureService.getDistance(matrix, i, query, row, distanceMeasure));
+        }
+        heap.sort();
+    }
+
+    @Override
+    public Neighbors range(DataMatrix query, int row, double radius) {
+        DataRow self = query.row(row);
+        RangeCollector collector = new RangeCollector();
+        int N = matrix.rowCount();
+        double bound = DistanceMeasureService.toSurrogate(radius, distanceMeasure);
+        for(int i=0; i < N; ++i){
+            if(matrix.row(i) == self) continue;
+            double surrogate = DistanceMeasureService.getSurrogateDistance(matrix, i, query, row, distanceMeasure);
+            if(surrogate < bound){
+                collector.add(i, DistanceMeasureService.toDistance(surrogate, distanceMeasure));
+            }
+        }
+        return collector.toNeighbors();
+    }
+}
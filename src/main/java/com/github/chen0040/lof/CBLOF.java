@@ -3,16 +3,16 @@ package com.github.chen0040.lof;
 
 import com.github.chen0040.data.frame.DataFrame;
 import com.github.chen0040.data.frame.DataRow;
-import com.github.chen0040.data.utils.CountRepository;
 import com.github.chen0040.data.utils.discretizers.KMeansDiscretizer;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -27,9 +27,20 @@ public class CBLOF {
     @Setter(AccessLevel.NONE)
     private KMeansDiscretizer discretizer;
 
+    // feature numbers of the (column, value) pairs of the discretized batch the clusters count
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private CategoricalDictionary dictionary;
+
+    // scoring tables of the clusters, built at the end of the fit
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private CompiledClusters compiled;
+
     private int split;
 
     public double threshold;
+    // scores the rows on the executor; the Squeezer runs in parallel only with a squeezerBatchSize above 1
     public boolean parallel;
     public boolean automaticThresholding;
     public double anomalyRatioInAutomaticThresholding;
@@ -37,6 +48,13 @@ public class CBLOF {
     public double alpha;
     public double beta;
 
+    // rows per mini-batch of the parallel Squeezer, see runSqueezer; the default of 1 runs the exact sequential pass even
+    // when parallel is set, and a larger size trades the sequential clusters for an approximation
+    private int squeezerBatchSize = 1;
+
+    // clusters and scores the rows of a batch when parallel is set; shared across detectors unless replaced
+    private ExecutorService executor = ParallelRows.sharedExecutor();
+
     public CBLOF(){
         super();
         KMeansDiscretizer d = new KMeansDiscretizer();
@@ -57,53 +75,38 @@ public class CBLOF {
     }
 
     protected void adjustThreshold(DataFrame batch){
-        int m = batch.rowCount();
-
-        List<Integer> orders = new ArrayList<Integer>();
-        List<Double> probs = new ArrayList<Double>();
-
-        for(int i=0; i < m; ++i){
-            DataRow tuple = batch.row(i);
-            double prob = transform(tuple);
-            probs.add(prob);
-            orders.add(i);
-        }
-
-        final List<Double> probs2 = probs;
-        // sort descendingly by probability values
-        Collections.sort(orders, new Comparator<Integer>() {
-            public int compare(Integer h1, Integer h2) {
-                double prob1 = probs2.get(h1);
-                double prob2 = probs2.get(h2);
-                return Double.compare(prob2, prob1);
-            }
-        });
-
-        int selected_position = (int)(anomalyRatioInAutomaticThresholding * orders.size());
-
-
-        int last_index = orders.get(orders.size() - 1);
-        int selected_index = -1;
-        if(selected_position >= orders.size()){
-            selected_position = orders.size() - 1;
-            selected_index = last_index; //setAttribute(THRESHOLD, probs.get(orders.get(orders.size() - 1)));
-        }
-        else {
-            selected_index = orders.get(selected_position);
-        }
+        adjustThreshold(scoreAll(batch));
+    }
 
-        while(probs.get(selected_index) == probs.get(last_index) && selected_position > 0){
-            selected_position--;
-            selected_index = orders.get(selected_position);
+    /**
+     * Picks the threshold from the scores of a batch: the score ranked anomalyRatioInAutomaticThresholding from the top.
+     * If that score is the minimum, every row would be above the threshold except the ties with the minimum, so the
+     * smallest score above the minimum is taken instead.
+     */
+    private void adjustThreshold(double[] scores){
+        int m = scores.length;
+        int selected_position = Math.min((int)(anomalyRatioInAutomaticThresholding * m), m - 1);
+
+        double selected = Thresholds.kthLargest(scores, selected_position);
+        double min = Thresholds.min(scores);
+        if(selected == min && selected_position > 0){
+            selected = Thresholds.nextAbove(scores, min);
         }
 
-        threshold = probs.get(selected_index);
+        threshold = selected;
     }
 
     public DataFrame fitAndTransform(DataFrame frame) {
         DataFrame dataFrame = discretizer.fitAndTransform(frame);
 
-        runSqueezer(dataFrame, similarityThreshold);
+        int m = dataFrame.rowCount();
+        dictionary = CategoricalDictionary.of(dataFrame);
+        int[][] encoded = new int[m][];
+        for(int i=0; i < m; ++i){
+            encoded[i] = dictionary.encode(dataFrame.row(i));
+        }
+
+        Cluster[] assignment = runSqueezer(encoded, similarityThreshold);
 
         // sort descendingly based on cluster size
         Collections.sort(clusters, (o1, o2) -> Integer.compare(o2.size(), o1.size()));
@@ -114,7 +117,9 @@ public class CBLOF {
             //System.out.println("cluster[" +i +"].size: " + cluster.size());
         }
 
-        int m = dataFrame.rowCount();
+        for(int i=0; i < m; ++i){
+            dataFrame.row(i).setCategoricalTargetCell("cluster", "" + assignment[i].getIndex());
+        }
 
         split = 0; // clusters with index < split will be the large clusters; otherwise small clusters
         int accumulated_count = 0;
@@ -130,114 +135,217 @@ public class CBLOF {
 
         //System.out.println("split: "+split);
 
-        for(int i=0; i < m; ++i){
-            DataRow row = dataFrame.row(i);
-            Cluster c = clusters.get(Integer.parseInt(row.getCategoricalTargetCell("cluster")));
-
-            if(c.getIndex() > split){ // c belongs to small clusters
-                double minDistance = Double.MAX_VALUE;
-                for(int j=0; j <= split; ++j){
-                    double distance = clusters.get(j).distance(row);
-                    if(minDistance > distance){
-                        minDistance = distance;
-                    }
-                }
+        compiled = new CompiledClusters(clusters, dictionary.featureCount(), dictionary.columnCount());
 
-                row.setTargetCell("CBLOF", c.size() * minDistance);
-            }else{
-                row.setTargetCell("CBLOF", c.size() * c.distance(row));
+        // the anomaly labels below are taken from these scores, so every row is discretized and scored once
+        double[] scores = new double[m];
+        ParallelRows.forEach(parallel ? executor : null, m, (from, to) -> {
+            double[] similarities = new double[clusters.size()];
+            for(int i = from; i < to; ++i){
+                compiled.similarities(encoded[i], similarities);
+                scores[i] = score(similarities, assignment[i].getIndex());
+                dataFrame.row(i).setTargetCell("CBLOF", scores[i]);
             }
-
-        }
+        });
 
         if(automaticThresholding){
-            adjustThreshold(dataFrame);
+            adjustThreshold(scores);
         }
 
         for(int i=0; i < m; ++i){
             DataRow tuple = dataFrame.row(i);
-            tuple.setCategoricalTargetCell("anomaly", isAnomaly(tuple) ? "1" : "0");
+            tuple.setCategoricalTargetCell("anomaly", scores[i] > threshold ? "1" : "0");
         }
 
         return dataFrame;
     }
 
-    private void runSqueezer(DataFrame batch, double s){
+    /**
+     * Squeezer: a single pass that adds each row to its most similar cluster, or starts a new cluster when no
+     * similarity reaches s. Returns the cluster each row was added to.
+     *
+     * When parallel is set and squeezerBatchSize is above 1, the rows are taken in mini-batches of that size, as an
+     * opt-in approximation of the sequential pass. The rows of a mini-batch are
+     * first compared, concurrently, against the clusters as they were at the start of the mini-batch; then, in row
+     * order, against the clusters started within the mini-batch so far, and added. The clusters therefore depend only on
+     * the row order and the batch size, not on the executor or the number of threads; a batch size of 1 is the
+     * sequential Squeezer.
+     */
+    private Cluster[] runSqueezer(int[][] batch, double s){
         clusters = new ArrayList<>();
 
-        int m = batch.rowCount();
-        for(int i=0; i < m; ++i){
-            DataRow row = batch.row(i);
-
-            if(i==0){
-                clusters.add(new Cluster(row));
-            }
-            else{
-                double maxSim = Double.MIN_VALUE;
-                Cluster closestCluster = null;
-                for(Cluster c : clusters){
-                    double sim = c.similarity(row);
+        int m = batch.length;
+        Cluster[] assignment = new Cluster[m];
+
+        int batchSize = parallel ? Math.max(1, squeezerBatchSize) : 1;
+        int[] closest = new int[batchSize];
+        double[] closestSim = new double[batchSize];
+
+        for(int start = 0; start < m; start += batchSize){
+            final int offset = start;
+            final int snapshot = clusters.size();
+            int end = Math.min(m, start + batchSize);
+
+            // a row compared against every cluster is heavier than a scored row, and a mini-batch is far smaller than a
+            // batch, so it is split down to single rows rather than chunks of MIN_CHUNK_SIZE
+            ParallelRows.forEach(parallel ? executor : null, end - start, 1, (from, to) -> {
+                for(int k = from; k < to; ++k){
+                    int[] row = batch[offset + k];
+                    double maxSim = Double.MIN_VALUE;
+                    int closestCluster = -1;
+                    for(int c = 0; c < snapshot; ++c){
+                        double sim = clusters.get(c).similarity(row);
+                        if(sim > maxSim){
+                            maxSim = sim;
+                            closestCluster = c;
+                        }
+                    }
+                    closest[k] = closestCluster;
+                    closestSim[k] = maxSim;
+                }
+            });
+
+            for(int i = start; i < end; ++i){
+                int[] row = batch[i];
+                double maxSim = closestSim[i - start];
+                Cluster closestCluster = closest[i - start] < 0 ? null : clusters.get(closest[i - start]);
+                for(int c = snapshot; c < clusters.size(); ++c){
+                    double sim = clusters.get(c).similarity(row);
                     if(sim > maxSim){
                         maxSim = sim;
-                        closestCluster = c;
+                        closestCluster = clusters.get(c);
                     }
                 }
 
-                if(maxSim < s){
-                    clusters.add(new Cluster(row));
+                if(closestCluster == null || maxSim < s){
+                    assignment[i] = new Cluster(row);
+                    clusters.add(assignment[i]);
                 }else{
                     closestCluster.add(row);
+                    assignment[i] = closestCluster;
                 }
             }
-
-
         }
+        return assignment;
     }
 
 
 
+    /**
+     * Computes the CBLOF of every row of a batch, in the same way as transform(), and returns the scores in row order.
+     * Rows are scored in chunks of contiguous rows on the executor when parallel is set.
+     */
+    public double[] scoreAll(DataFrame batch){
+        int m = batch.rowCount();
+        double[] scores = new double[m];
+        ParallelRows.forEach(parallel ? executor : null, m, (from, to) -> {
+            for(int i = from; i < to; ++i){
+                scores[i] = transform(batch.row(i));
+            }
+        });
+        return scores;
+    }
+
     // the higher the CBLOF, the more likely the tuple is an outlier
 
-    public double transform(DataRow row) {
-        row = discretizer.transform(row);
-        double CBLOF;
+    public double transform(DataRow tuple) {
+        int[] row = dictionary.encode(discretizer.transform(tuple), compiled.rowBuffer.get());
+        double[] similarities = compiled.similarityBuffer.get();
+        compiled.similarities(row, similarities);
 
         double maxSim = Double.MIN_VALUE;
-        Cluster closestCluster = null;
-        for(Cluster c : clusters){
-            double sim = c.similarity(row);
-            if(sim > maxSim){
-                maxSim = sim;
+        int closestCluster = -1;
+        for(int c=0; c < similarities.length; ++c){
+            if(similarities[c] > maxSim){
+                maxSim = similarities[c];
                 closestCluster = c;
             }
         }
 
-        assert closestCluster != null;
+        assert closestCluster != -1;
 
-        if(closestCluster.getIndex() > split){ // c belongs to small clusters
+        return score(similarities, closestCluster);
+    }
+
+    // CBLOF of a row in the cluster with the given index, from the similarities of the row to all clusters
+    private double score(double[] similarities, int cluster){
+        double CBLOF;
+        if(cluster > split){ // c belongs to small clusters
             double minDistance = Double.MAX_VALUE;
             for(int j=0; j <= split; ++j){
-                double distance = clusters.get(j).distance(row);
+                double distance = 1 - similarities[j];
                 if(minDistance > distance){
                     minDistance = distance;
                 }
             }
 
-            CBLOF = closestCluster.size() * minDistance;
+            CBLOF = compiled.sizes[cluster] * minDistance;
         }else{
-            CBLOF = closestCluster.size() * closestCluster.distance(row);
+            CBLOF = compiled.sizes[cluster] * (1 - similarities[cluster]);
         }
 
         return CBLOF;
     }
 
+    /**
+     * The fitted clusters compiled for scoring. The probability count(column = value) / count(column) of every feature
+     * in every cluster is stored feature-major, so the similarities of a row to all clusters accumulate in a single
+     * pass over the features of the row, each adding one contiguous run of the table. The large clusters come first,
+     * so the distance of a row to the nearest of them is read from the same similarities.
+     */
+    private static class CompiledClusters {
+        private final int clusterCount;
+        private final int[] sizes;
+        private final double[] probabilities; // [feature * clusterCount + cluster]
+
+        // per-thread scratch of transform(), so that scoring a row allocates neither its encoding nor its similarities
+        private final ThreadLocal<int[]> rowBuffer;
+        private final ThreadLocal<double[]> similarityBuffer;
+
+        CompiledClusters(List<Cluster> clusters, int featureCount, int columnCount){
+            clusterCount = clusters.size();
+            rowBuffer = ThreadLocal.withInitial(() -> new int[columnCount]);
+            similarityBuffer = ThreadLocal.withInitial(() -> new double[clusterCount]);
+            sizes = new int[clusterCount];
+            probabilities = new double[featureCount * clusterCount];
+            for(int c=0; c < clusterCount; ++c){
+                Cluster cluster = clusters.get(c);
+                sizes[c] = cluster.size();
+                for(int feature=0; feature < featureCount; ++feature){
+                    probabilities[feature * clusterCount + c] = cluster.probability(feature);
+                }
+            }
+        }
+
+        // the same value as Cluster.similarity(row) for every cluster, in cluster order
+        void similarities(int[] row, double[] out){
+            Arrays.fill(out, 0);
+            for(int feature : row){
+                if(feature == CategoricalDictionary.UNKNOWN) continue;
+                int base = feature * clusterCount;
+                for(int c=0; c < clusterCount; ++c){
+                    out[c] += probabilities[base + c];
+                }
+            }
+            for(int c=0; c < clusterCount; ++c){
+                out[c] /= row.length;
+            }
+        }
+    }
+
+    /**
+     * Squeezer cluster summary: for every feature of the dictionary, the number of rows of the cluster with that
+     * (column, value) pair, and for every column the number of rows with a value in it.
+     */
     private class Cluster implements Cloneable {
-        private CountRepository counts;
+        private int[] counts;
+        private int[] columnTotals;
         private int totalCount;
         private int index;
 
         public void copy(Cluster rhs){
-            counts = rhs.counts.makeCopy();
+            counts = rhs.counts.clone();
+            columnTotals = rhs.columnTotals.clone();
             totalCount = rhs.totalCount;
             index = rhs.index;
         }
@@ -251,14 +359,14 @@ public class CBLOF {
         }
 
         public Cluster(){
-            counts = new CountRepository();
+            counts = new int[dictionary.featureCount()];
+            columnTotals = new int[dictionary.columnCount()];
             totalCount = 0;
         }
 
-        public Cluster(DataRow tuple){
-            counts = new CountRepository();
-            totalCount = 0;
-            add(tuple);
+        public Cluster(int[] row){
+            this();
+            add(row);
         }
 
         public int getIndex(){
@@ -269,17 +377,12 @@ public class CBLOF {
             this.index = index;
         }
 
-        public void add(DataRow row){
-
-            List<String> columnNames = row.getCategoricalColumnNames();
-            for(String columnName : columnNames){
-                String value = row.getCategoricalCell(columnName);
-                String eventName = columnName+"="+value;
-
-                counts.addSupportCount(eventName);
-                counts.addSupportCount(columnName);
+        public void add(int[] row){
+            for(int feature : row){
+                if(feature == CategoricalDictionary.UNKNOWN) continue;
+                counts[feature]++;
+                columnTotals[dictionary.column(feature)]++;
             }
-            row.setCategoricalTargetCell("cluster", "" + index);
             totalCount++;
         }
 
@@ -287,29 +390,22 @@ public class CBLOF {
             return totalCount;
         }
 
-        public double similarity(DataRow row){
-
-            double similarity = 0;
-            List<String> columnNames = row.getCategoricalColumnNames();
-            for(String columnName : columnNames){
-                String value = row.getCategoricalCell(columnName);
-                String eventName = columnName+"="+value;
-
-                double count_Ai = counts.getSupportCount(eventName);
-                double count_Total = counts.getSupportCount(columnName);
+        // share of the rows of the cluster with a value in the column of the feature that have the feature's value
+        public double probability(int feature){
+            double count_Ai = counts[feature];
+            double count_Total = columnTotals[dictionary.column(feature)];
+            return count_Total > 0 ? count_Ai / count_Total : 0;
+        }
 
+        public double similarity(int[] row){
 
-                if(count_Total > 0) {
-                    similarity += count_Ai / count_Total;
-                }
+            double similarity = 0;
+            for(int feature : row){
+                if(feature == CategoricalDictionary.UNKNOWN) continue;
+                similarity += probability(feature);
             }
 
-            return similarity / columnNames.size();
-        }
-
-        public double distance(DataRow tuple){
-            double sim = similarity(tuple);
-            return 1 - sim;
+            return similarity / row.length;
         }
     }
 
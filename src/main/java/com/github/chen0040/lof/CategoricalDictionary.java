@@ -0,0 +1,107 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Dictionary encoding of the categorical cells of a batch. Every (column, value) pair seen in the batch is given a
+ * feature number, consecutive within a column, so that per-value counts can be kept in a flat int array indexed by
+ * feature instead of a map keyed by "column=value" strings. A dictionary built for a stream starts empty and grows as
+ * new pairs arrive.
+ */
+class CategoricalDictionary {
+
+    static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+    private final List<Map<String, Integer>> features = new ArrayList<>();
+    private int[] featureColumn = new int[16];
+    private int featureCount = 0;
+
+    CategoricalDictionary(){
+    }
+
+    static CategoricalDictionary of(DataFrame batch){
+        CategoricalDictionary dictionary = new CategoricalDictionary();
+        int m = batch.rowCount();
+        for(int i=0; i < m; ++i){
+            DataRow row = batch.row(i);
+            for(String columnName : row.getCategoricalColumnNames()){
+                dictionary.add(columnName, row.getCategoricalCell(columnName));
+            }
+        }
+        return dictionary;
+    }
+
+    private int add(String columnName, String value){
+        Integer column = columnIndex.get(columnName);
+        if(column == null){
+            column = features.size();
+            columnIndex.put(columnName, column);
+            features.add(new HashMap<>());
+        }
+        Map<String, Integer> values = features.get(column);
+        if(!values.containsKey(value)){
+            if(featureCount == featureColumn.length){
+                int[] grown = new int[featureCount * 2];
+                System.arraycopy(featureColumn, 0, grown, 0, featureCount);
+                featureColumn = grown;
+            }
+            featureColumn[featureCount] = column;
+            values.put(value, featureCount++);
+        }
+        return values.get(value);
+    }
+
+    int columnCount(){
+        return features.size();
+    }
+
+    int featureCount(){
+        return featureCount;
+    }
+
+    // column the feature belongs to
+    int column(int feature){
+        return featureColumn[feature];
+    }
+
+    /**
+     * Encodes the categorical cells of a row, one entry per categorical column of the row in the order of
+     * getCategoricalColumnNames(), as feature numbers; a column or value that was not in the batch is UNKNOWN.
+     */
+    int[] encode(DataRow row){
+        return encode(row, null);
+    }
+
+    // as encode(row), into buffer when it has one entry per categorical column of the row and into a new array otherwise
+    int[] encode(DataRow row, int[] buffer){
+        List<String> columnNames = row.getCategoricalColumnNames();
+        int[] encoded = buffer != null && buffer.length == columnNames.size() ? buffer : new int[columnNames.size()];
+        for(int k=0; k < encoded.length; ++k){
+            String columnName = columnNames.get(k);
+            Integer column = columnIndex.get(columnName);
+            Integer feature = column == null ? null : features.get(column).get(row.getCategoricalCell(columnName));
+            encoded[k] = feature == null ? UNKNOWN : feature;
+        }
+        return encoded;
+    }
+
+    // encodes the categorical cells of a row as encode() does, first adding the pairs that are not in the dictionary
+    int[] encodeAndAdd(DataRow row){
+        List<String> columnNames = row.getCategoricalColumnNames();
+        int[] encoded = new int[columnNames.size()];
+        for(int k=0; k < encoded.length; ++k){
+            String columnName = columnNames.get(k);
+            encoded[k] = add(columnName, row.getCategoricalCell(columnName));
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataRow;
+
+
+/**
+ * Row-major copy of the numeric input columns of a batch in one contiguous double[] block: the values of row i
+ * start at offset(i) and span dimension() entries. Distance kernels run over this block by row index; the DataRow
+ * of each row is kept only so that results can be reported and custom distance measures called at the API boundary.
+ */
+public class DataMatrix {
+    private final double[] data;
+    private final DataRow[] rows;
+    private final int dimension;
+
+    private DataMatrix(double[] data, DataRow[] rows, int dimension){
+        this.data = data;
+        this.rows = rows;
+        this.dimension = dimension;
+    }
+
+    public static DataMatrix of(DataFrame batch){
+        int m = batch.rowCount();
+        DataRow[] rows = new DataRow[m];
+        double[][] values = new double[m][];
+        int dimension = 0;
+        for(int i=0; i < m; ++i){
+            rows[i] = batch.row(i);
+            values[i] = rows[i].toArray();
+            dimension = Math.max(dimension, values[i].length);
+        }
+
+        double[] data = new double[m * dimension];
+        for(int i=0; i < m; ++i){
+            System.arraycopy(values[i], 0, data, i * dimension, values[i].length);
+        }
+        return new DataMatrix(data, rows, dimension);
+    }
+
+    // wraps raw feature vectors that have no DataRow behind them, so they can only be used with the built-in distances
+    public static DataMatrix of(double[][] values){
+        int m = values.length;
+        int dimension = 0;
+        for(int i=0; i < m; ++i){
+            dimension = Math.max(dimension, values[i].length);
+        }
+
+        double[] data = new double[m * dimension];
+        for(int i=0; i < m; ++i){
+            System.arraycopy(values[i], 0, data, i * dimension, values[i].length);
+        }
+        return new DataMatrix(data, new DataRow[m], dimension);
+    }
+
+    public static DataMatrix of(DataRow row){
+        double[] x = row.toArray();
+        return new DataMatrix(x, new DataRow[] { row }, x.length);
+    }
+
+    public int rowCount(){
+        return rows.length;
+    }
+
+    public int dimension(){
+        return dimension;
+    }
+
+    public int offset(int i){
+        return i * dimension;
+    }
+
+    public double[] data(){
+        return data;
+    }
+
+    public double get(int i, int d){
+        return data[i * dimension + d];
+    }
+
+    public DataRow row(int i){
+        return rows[i];
+    }
+}
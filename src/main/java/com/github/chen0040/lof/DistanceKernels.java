@@ -0,0 +1,196 @@
+package com.github.chen0040.lof;
+
+
+/**
+ * Distance kernels over row-major primitive storage, addressed by array offset and dimension.
+ *
+ * The loops are unrolled by four with independent accumulators, which breaks the floating-point dependency chain of
+ * a naive reduction and lets the JIT keep several subtractions and multiplications in flight per cycle. All
+ * euclidean distances in this package are computed here so that every code path sees the same rounding.
+ */
+public class DistanceKernels {
+
+    private DistanceKernels(){
+    }
+
+    public static double squaredEuclidean(double[] x1, int offset1, double[] x2, int offset2, int dimension){
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int bound = dimension & ~3;
+        for(; i < bound; i += 4){
+            double d0 = x1[offset1 + i] - x2[offset2 + i];
+            double d1 = x1[offset1 + i + 1] - x2[offset2 + i + 1];
+            double d2 = x1[offset1 + i + 2] - x2[offset2 + i + 2];
+            double d3 = x1[offset1 + i + 3] - x2[offset2 + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for(; i < dimension; ++i){
+            double d0 = x1[offset1 + i] - x2[offset2 + i];
+            s0 += d0 * d0;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Squared euclidean distance that stops accumulating once the partial sum exceeds bound, checked every
+     * ABANDON_STRIDE dimensions. The value returned is then only known to be greater than bound; otherwise it is
+     * identical to the unbounded kernel.
+     */
+    public static double squaredEuclidean(double[] x1, int offset1, double[] x2, int offset2, int dimension, double bound){
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int unrolled = dimension & ~3;
+        while(i < unrolled){
+            int stop = Math.min(unrolled, i + ABANDON_STRIDE);
+            for(; i < stop; i += 4){
+                double d0 = x1[offset1 + i] - x2[offset2 + i];
+                double d1 = x1[offset1 + i + 1] - x2[offset2 + i + 1];
+                double d2 = x1[offset1 + i + 2] - x2[offset2 + i + 2];
+                double d3 = x1[offset1 + i + 3] - x2[offset2 + i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            double partial = (s0 + s1) + (s2 + s3);
+            if(partial > bound) return partial;
+        }
+        for(; i < dimension; ++i){
+            double d0 = x1[offset1 + i] - x2[offset2 + i];
+            s0 += d0 * d0;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static double euclidean(double[] x1, int offset1, double[] x2, int offset2, int dimension){
+        return Math.sqrt(squaredEuclidean(x1, offset1, x2, offset2, dimension));
+    }
+
+    public static double manhattan(double[] x1, int offset1, double[] x2, int offset2, int dimension){
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int bound = dimension & ~3;
+        for(; i < bound; i += 4){
+            s0 += Math.abs(x1[offset1 + i] - x2[offset2 + i]);
+            s1 += Math.abs(x1[offset1 + i + 1] - x2[offset2 + i + 1]);
+            s2 += Math.abs(x1[offset1 + i + 2] - x2[offset2 + i + 2]);
+            s3 += Math.abs(x1[offset1 + i + 3] - x2[offset2 + i + 3]);
+        }
+        for(; i < dimension; ++i){
+            s0 += Math.abs(x1[offset1 + i] - x2[offset2 + i]);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static double chebyshev(double[] x1, int offset1, double[] x2, int offset2, int dimension){
+        double m0 = 0, m1 = 0, m2 = 0, m3 = 0;
+        int i = 0;
+        int bound = dimension & ~3;
+        for(; i < bound; i += 4){
+            m0 = Math.max(m0, Math.abs(x1[offset1 + i] - x2[offset2 + i]));
+            m1 = Math.max(m1, Math.abs(x1[offset1 + i + 1] - x2[offset2 + i + 1]));
+            m2 = Math.max(m2, Math.abs(x1[offset1 + i + 2] - x2[offset2 + i + 2]));
+            m3 = Math.max(m3, Math.abs(x1[offset1 + i + 3] - x2[offset2 + i + 3]));
+        }
+        for(; i < dimension; ++i){
+            m0 = Math.max(m0, Math.abs(x1[offset1 + i] - x2[offset2 + i]));
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    // 1 - cos(x1, x2); a zero vector is at distance 1 from everything
+    public static double cosine(double[] x1, int offset1, double[] x2, int offset2, int dimension){
+        double dot0 = 0, dot1 = 0, n10 = 0, n11 = 0, n20 = 0, n21 = 0;
+        int i = 0;
+        int bound = dimension & ~1;
+        for(; i < bound; i += 2){
+            double a0 = x1[offset1 + i], a1 = x1[offset1 + i + 1];
+            double b0 = x2[offset2 + i], b1 = x2[offset2 + i + 1];
+            dot0 += a0 * b0;
+            dot1 += a1 * b1;
+            n10 += a0 * a0;
+            n11 += a1 * a1;
+            n20 += b0 * b0;
+            n21 += b1 * b1;
+        }
+        for(; i < dimension; ++i){
+            double a0 = x1[offset1 + i];
+            double b0 = x2[offset2 + i];
+            dot0 += a0 * b0;
+            n10 += a0 * a0;
+            n20 += b0 * b0;
+        }
+        double norm = Math.sqrt((n10 + n11) * (n20 + n21));
+        if(norm == 0) return 1;
+        return 1 - (dot0 + dot1) / norm;
+    }
+
+    /**
+     * Squared euclidean distance from one query to each of the rows [from, to) of a row-major block; the distance to
+     * row r is written to out[r - from]. Rows are processed two at a time so that every query value loaded is used
+     * for both rows; each row is accumulated in the same order as the pairwise kernel, so the results are identical.
+     */
+    public static void squaredEuclidean(double[] query, int queryOffset, double[] block, int from, int to, int dimension, double[] out){
+        int bound = dimension & ~3;
+        int r = from;
+        for(; r + 1 < to; r += 2){
+            int offsetA = r * dimension;
+            int offsetB = offsetA + dimension;
+            double a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            double b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+            int i = 0;
+            for(; i < bound; i += 4){
+                double q0 = query[queryOffset + i];
+                double q1 = query[queryOffset + i + 1];
+                double q2 = query[queryOffset + i + 2];
+                double q3 = query[queryOffset + i + 3];
+                double d0 = block[offsetA + i] - q0;
+                double d1 = block[offsetA + i + 1] - q1;
+                double d2 = block[offsetA + i + 2] - q2;
+                double d3 = block[offsetA + i + 3] - q3;
+                a0 += d0 * d0;
+                a1 += d1 * d1;
+                a2 += d2 * d2;
+                a3 += d3 * d3;
+                d0 = block[offsetB + i] - q0;
+                d1 = block[offsetB + i + 1] - q1;
+                d2 = block[offsetB + i + 2] - q2;
+                d3 = block[offsetB + i + 3] - q3;
+                b0 += d0 * d0;
+                b1 += d1 * d1;
+                b2 += d2 * d2;
+                b3 += d3 * d3;
+            }
+            for(; i < dimension; ++i){
+                double q0 = query[queryOffset + i];
+                double d0 = block[offsetA + i] - q0;
+                a0 += d0 * d0;
+                d0 = block[offsetB + i] - q0;
+                b0 += d0 * d0;
+            }
+            out[r - from] = (a0 + a1) + (a2 + a3);
+            out[r - from + 1] = (b0 + b1) + (b2 + b3);
+        }
+        if(r < to){
+            out[r - from] = squaredEuclidean(block, r * dimension, query, queryOffset, dimension);
+        }
+    }
+
+    static final int BLOCK_SIZE = 64;
+
+    // how often the early-abandoning kernel compares its partial sum against the bound
+    static final int ABANDON_STRIDE = 16;
+
+    // from this many dimensions on, searches use the early-abandoning kernel rather than the batched one
+    static final int EARLY_ABANDON_DIMENSION = 32;
+
+    private static final ThreadLocal<double[]> blocks = ThreadLocal.withInitial(() -> new double[BLOCK_SIZE]);
+
+    // per-thread scratch buffer of BLOCK_SIZE distances for the batched kernel
+    static double[] blockBuffer(){
+        return blocks.get();
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.function.BiFunction;
+
+
+/**
+ * Distance between two rows, evaluated on their numeric values in primitive storage so that no Double is boxed per
+ * call: the rows start at offset1 of x1 and offset2 of x2 and span dimension entries, as the rows of a DataMatrix do.
+ * The detectors and neighbor indexes call it O(N^2) times and more, so a measure written against this interface runs
+ * without allocating. A null measure stands for the built-in euclidean distance.
+ *
+ * A measure defined on DataRows, as the BiFunction setters of the detectors take, is adapted with of(); it is then
+ * evaluated on the rows behind the values, and cannot be used on raw vectors that have none.
+ */
+@FunctionalInterface
+public interface DistanceMeasure {
+
+    double distance(double[] x1, int offset1, double[] x2, int offset2, int dimension);
+
+    // the distance when the DataRows behind the values are at hand, which the adapter of a BiFunction requires
+    default double distance(DataRow row1, double[] x1, int offset1, DataRow row2, double[] x2, int offset2, int dimension){
+        return distance(x1, offset1, x2, offset2, dimension);
+    }
+
+    // the distance between row i1 of m1 and row i2 of m2
+    default double distance(DataMatrix m1, int i1, DataMatrix m2, int i2){
+        return distance(m1.row(i1), m1.data(), m1.offset(i1), m2.row(i2), m2.data(), m2.offset(i2), Math.min(m1.dimension(), m2.dimension()));
+    }
+
+    // whether the measure can be evaluated on raw vectors with no DataRow behind them
+    default boolean supportsVectors(){
+        return true;
+    }
+
+    static DistanceMeasure of(BiFunction<DataRow, DataRow, Double> distance){
+        return distance == null ? null : new RowDistanceMeasure(distance);
+    }
+}
@@ -15,28 +15,69 @@ import java.util.function.BiFunction;
  * Created by xschen on 17/8/15.
  */
 public class DistanceMeasureService {
-    public static double getDistance(DataFrame mgr, DataRow t1, DataRow t2, BiFunction<DataRow, DataRow, Double> distance){
+    public static double getDistance(DataFrame mgr, DataRow t1, DataRow t2, DistanceMeasure distance){
+        // a measure on DataRows needs no values, so they are only copied out for the euclidean and vector measures
+        if(distance instanceof RowDistanceMeasure){
+            return ((RowDistanceMeasure) distance).apply(t1, t2);
+        }
+        double[] x1 = t1.toArray();
+        double[] x2 = t2.toArray();
         if(distance== null){
-            double[] x1 = t1.toArray();
-            double[] x2 = t2.toArray();
             return euclideanDistance(x1, x2);
+        }else{
+            return distance.distance(t1, x1, 0, t2, x2, 0, Math.min(x1.length, x2.length));
+        }
+    }
+
+    public static double getDistance(DataFrame mgr, DataRow t1, DataRow t2, BiFunction<DataRow, DataRow, Double> distance){
+        if(distance == null){
+            return euclideanDistance(t1.toArray(), t2.toArray());
         }else{
             return distance.apply(t1, t2);
         }
     }
 
+    public static double getDistance(DataMatrix m1, int i1, DataMatrix m2, int i2, DistanceMeasure distance){
+        if(distance == null){
+            return euclideanDistance(m1.data(), m1.offset(i1), m2.data(), m2.offset(i2), Math.min(m1.dimension(), m2.dimension()));
+        }else{
+            return distance.distance(m1, i1, m2, i2);
+        }
+    }
+
+    /**
+     * Rank-equivalent surrogate of getDistance: ordering rows by it gives the same order as by the distance itself,
+     * so a kNN search can compare surrogates and convert only the survivors with toDistance. For the default
+     * euclidean distance the surrogate is the squared distance, which skips the square root.
+     */
+    public static double getSurrogateDistance(DataMatrix m1, int i1, DataMatrix m2, int i2, DistanceMeasure distance){
+        if(distance == null){
+            return DistanceKernels.squaredEuclidean(m1.data(), m1.offset(i1), m2.data(), m2.offset(i2), Math.min(m1.dimension(), m2.dimension()));
+        }else{
+            return distance.distance(m1, i1, m2, i2);
+        }
+    }
+
+    public static double toDistance(double surrogate, DistanceMeasure distance){
+        return distance == null ? Math.sqrt(surrogate) : surrogate;
+    }
+
+    public static double toSurrogate(double value, DistanceMeasure distance){
+        return distance == null ? value * value : value;
+    }
+
+    public static double euclideanDistance(double[] x1, int offset1, double[] x2, int offset2, int dimension){
+        return DistanceKernels.euclidean(x1, offset1, x2, offset2, dimension);
+    }
+
     public static double euclideanDistance(double[] x1, double[] x2){
         int dimension = Math.min(x1.length, x2.length);
-        double cross_prod = 0;
-        for(int i=0; i < dimension; ++i){
-            cross_prod += (x1[i]-x2[i]) * (x1[i]-x2[i]);
-        }
-        return Math.sqrt(cross_prod);
+        return DistanceKernels.euclidean(x1, 0, x2, 0, dimension);
     }
 
-    public static List<TupleTwo<DataRow, Double>> getKNearestNeighbors(DataFrame batch, DataRow t, int k, BiFunction<DataRow, DataRow, Double> distanceMeasure){
+    public static List<TupleTwo<DataRow, Double>> getKNearestNeighbors(DataFrame batch, DataRow t, int k, DistanceMeasure distanceMeasure){
 
-        MinPQ<DataRow> minPQ = new MinPQ<>();
+        BoundedMaxHeap heap = BoundedMaxHeap.forThread(k);
 
         int N = batch.rowCount();
         for(int i = 0; i < N; ++i){
@@ -44,22 +85,29 @@ public class DistanceMeasureService {
             DataRow ti = batch.row(i);
             if(ti == t) continue;
             double distance = getDistance(batch, ti, t, distanceMeasure);
-            minPQ.enqueue(ti, distance);
+            heap.offer(i, distance);
         }
+        heap.sort();
 
-        List<TupleTwo<DataRow, Double>> neighbors = new ArrayList<>();
-        int m = Math.min(k, N);
-        for(int i=0; i < m; ++i){
-            TupleTwo<DataRow, Double> tuple = minPQ.delMin();
-            neighbors.add(tuple);
+        List<TupleTwo<DataRow, Double>> neighbors = new ArrayList<>(heap.size());
+        for(int i=0; i < heap.size(); ++i){
+            neighbors.add(new TupleTwo<>(batch.row(heap.index(i)), heap.distance(i)));
         }
 
         return neighbors;
     }
 
-    public static TupleTwo<DataRow, Double> getKthNearestNeighbor(DataFrame batch, DataRow tuple, int k, BiFunction<DataRow, DataRow, Double> distanceMeasure) {
+    public static TupleTwo<DataRow, Double> getKthNearestNeighbor(DataFrame batch, DataRow tuple, int k, DistanceMeasure distanceMeasure) {
         List<TupleTwo<DataRow,Double>> neighbors = getKNearestNeighbors(batch, tuple, k, distanceMeasure);
 
         return neighbors.get(neighbors.size()-1);
     }
+
+    public static List<TupleTwo<DataRow, Double>> getKNearestNeighbors(DataFrame batch, DataRow t, int k, BiFunction<DataRow, DataRow, Double> distanceMeasure){
+        return getKNearestNeighbors(batch, t, k, DistanceMeasure.of(distanceMeasure));
+    }
+
+    public static TupleTwo<DataRow, Double> getKthNearestNeighbor(DataFrame batch, DataRow tuple, int k, BiFunction<DataRow, DataRow, Double> distanceMeasure) {
+        return getKthNearestNeighbor(batch, tuple, k, DistanceMeasure.of(distanceMeasure));
+    }
 }
@@ -0,0 +1,55 @@
+package com.github.chen0040.lof;
+
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Approximate neighbor search for LOF and LDOF: builds an HNSWIndex per fit with the given knobs. m is the number of
+ * links per row and layer (twice that on the bottom layer), efConstruction the beam width while building and efSearch
+ * the beam width of the kNN queries; larger values trade speed for recall.
+ *
+ * When recallSampleSize is positive, every build also measures the recall of the index, the share of the exact
+ * recallK nearest neighbors it returns, averaged over that many rows drawn at random and compared against a linear
+ * scan. The result of the last build is kept in measuredRecall.
+ */
+@Getter
+@Setter
+public class HNSW implements NeighborIndexFactory {
+
+    private int m = 16;
+    private int efConstruction = 200;
+    private int efSearch = 64;
+    private long seed = 42L;
+
+    // inserts the rows concurrently when set, at the cost of a reproducible graph
+    private ExecutorService executor;
+
+    private int recallSampleSize = 0;
+    private int recallK = 10;
+
+    @Setter(AccessLevel.NONE)
+    private double measuredRecall = Double.NaN;
+
+    public HNSW(){
+    }
+
+    public HNSW(int m, int efConstruction, int efSearch){
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    public NeighborIndex build(DataMatrix matrix, DistanceMeasure distanceMeasure) {
+        HNSWIndex index = new HNSWIndex(matrix, distanceMeasure, m, efConstruction, efSearch, seed, executor);
+        if(recallSampleSize > 0){
+            measuredRecall = NeighborIndex.recall(index, new BruteForceIndex(matrix, distanceMeasure), recallK, recallSampleSize, seed);
+        }
+        return index;
+    }
+}
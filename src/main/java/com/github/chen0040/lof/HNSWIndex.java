@@ -0,0 +1,423 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Hierarchical navigable small world graph over the rows of a batch (Malkov and Yashunin, "Efficient and robust
+ * approximate nearest neighbor search using Hierarchical Navigable Small World graphs", 2018), for approximate kNN on
+ * high-dimensional data where the trees degrade to a linear scan.
+ *
+ * Every row is drawn a level from an exponential distribution and linked, on each layer up to its level, to at most
+ * m neighbors chosen by the neighbor-selection heuristic among the efConstruction nearest rows found by a greedy beam
+ * search (2m on the bottom layer). A kNN query descends greedily from the top layer and runs a beam search of width
+ * max(efSearch, k + 1) on the bottom layer. Searches compare surrogate distances (squared euclidean by default).
+ * Range queries are answered exactly by a linear scan.
+ *
+ * The levels are drawn from the seed up front. With an executor, the rows after the first few thousand are inserted
+ * concurrently, each neighbor list guarded by one of a fixed set of lock stripes; the graph then depends on the
+ * scheduling, whereas a sequential build is reproducible for a given seed.
+ */
+public class HNSWIndex implements NeighborIndex {
+
+    private static final int LOCK_STRIPES = 1024;
+    private static final int SEQUENTIAL_PREFIX = 2048;
+
+    private final DataMatrix matrix;
+    private final DistanceMeasure distanceMeasure;
+    private final int m;
+    private final int efConstruction;
+    private volatile int efSearch;
+
+    private final int[] levels;
+    // links[node][level] holds up to maxLinks(level) neighbors followed by one spare slot, linkCount their number
+    private final int[][][] links;
+    private final int[][] linkCount;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+
+    private final ThreadLocal<Search> searches;
+
+    public HNSWIndex(DataMatrix matrix, DistanceMeasure distanceMeasure,
+                     int m, int efConstruction, int efSearch, long seed, ExecutorService executor){
+        if(m < 2) throw new IllegalArgumentException("m must be at least 2");
+        this.matrix = matrix;
+        this.distanceMeasure = distanceMeasure;
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+
+        int size = matrix.rowCount();
+        searches = ThreadLocal.withInitial(() -> new Search(size));
+        for(int i=0; i < LOCK_STRIPES; ++i){
+            locks[i] = new Object();
+        }
+
+        Random random = new Random(seed);
+        double levelMultiplier = 1 / Math.log(m);
+        levels = new int[size];
+        links = new int[size][][];
+        linkCount = new int[size][];
+        for(int i=0; i < size; ++i){
+            levels[i] = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            links[i] = new int[levels[i] + 1][];
+            linkCount[i] = new int[levels[i] + 1];
+            for(int level = 0; level <= levels[i]; ++level){
+                links[i][level] = new int[maxLinks(level) + 1];
+            }
+        }
+
+        int prefix = Math.min(size, executor == null ? size : SEQUENTIAL_PREFIX);
+        for(int i=0; i < prefix; ++i){
+            insert(i);
+        }
+        if(prefix < size){
+            ParallelRows.forEach(executor, size - prefix, (from, to) -> {
+                for(int i = from; i < to; ++i){
+                    insert(prefix + i);
+                }
+            });
+        }
+    }
+
+    public int getM(){
+        return m;
+    }
+
+    public int getEfConstruction(){
+        return efConstruction;
+    }
+
+    public int getEfSearch(){
+        return efSearch;
+    }
+
+    // beam width of the queries; larger is slower and closer to exact
+    public void setEfSearch(int efSearch){
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    public DataMatrix matrix() {
+        return matrix;
+    }
+
+    private int maxLinks(int level){
+        return level == 0 ? 2 * m : m;
+    }
+
+    private Object lock(int node){
+        return locks[node & (LOCK_STRIPES - 1)];
+    }
+
+    private double distance(int a, int b){
+        return DistanceMeasureService.getSurrogateDistance(matrix, a, matrix, b, distanceMeasure);
+    }
+
+    private void insert(int q){
+        int level = levels[q];
+        int entry;
+        int top;
+        synchronized (this){
+            if(entryPoint < 0){
+                entryPoint = q;
+                maxLevel = level;
+                return;
+            }
+            entry = entryPoint;
+            top = maxLevel;
+        }
+
+        Search search = searches.get();
+        search.query = matrix;
+        search.queryRow = q;
+
+        int[] entries = { entry };
+        for(int l = top; l > level; --l){
+            entries[0] = search.greedy(entries[0], l);
+        }
+
+        for(int l = Math.min(level, top); l >= 0; --l){
+            BoundedMaxHeap found = search.layer(entries, l, efConstruction);
+            int[] candidates = new int[found.size()];
+            double[] distances = new double[found.size()];
+            int n = 0;
+            for(int j=0; j < found.size(); ++j){
+                if(found.index(j) == q) continue;
+                candidates[n] = found.index(j);
+                distances[n++] = found.distance(j);
+            }
+            if(n == 0) continue;
+
+            int[] selected = select(candidates, distances, n, m);
+            synchronized (lock(q)){
+                System.arraycopy(selected, 0, links[q][l], 0, selected.length);
+                linkCount[q][l] = selected.length;
+            }
+            for(int neighbor : selected){
+                link(neighbor, q, l);
+            }
+            entries = Arrays.copyOf(candidates, n);
+        }
+
+        if(level > top){
+            synchronized (this){
+                if(level > maxLevel){
+                    maxLevel = level;
+                    entryPoint = q;
+                }
+            }
+        }
+    }
+
+    // adds q to the neighbors of node on the level, shrinking them with the heuristic when they overflow
+    private void link(int node, int q, int level){
+        synchronized (lock(node)){
+            int[] list = links[node][level];
+            int count = linkCount[node][level];
+            list[count++] = q;
+            int capacity = maxLinks(level);
+            if(count <= capacity){
+                linkCount[node][level] = count;
+                return;
+            }
+
+            double[] distances = new double[count];
+            for(int j=0; j < count; ++j){
+                distances[j] = distance(node, list[j]);
+            }
+            sortByDistance(list, distances, count);
+            int[] kept = select(list, distances, count, capacity);
+            System.arraycopy(kept, 0, list, 0, kept.length);
+            linkCount[node][level] = kept.length;
+        }
+    }
+
+    /**
+     * Neighbor-selection heuristic: takes the candidates, sorted ascending by distance to the new row, that are closer to
+     * it than to any candidate already taken, so the links spread in different directions; then tops up with the
+     * nearest of the rest, up to max.
+     */
+    private int[] select(int[] candidates, double[] distances, int n, int max){
+        int[] selected = new int[Math.min(n, max)];
+        boolean[] taken = new boolean[n];
+        int count = 0;
+        for(int c=0; c < n && count < max; ++c){
+            boolean diverse = true;
+            for(int s=0; s < count; ++s){
+                if(distance(candidates[c], selected[s]) < distances[c]){
+                    diverse = false;
+                    break;
+                }
+            }
+            if(diverse){
+                selected[count++] = candidates[c];
+                taken[c] = true;
+            }
+        }
+        for(int c=0; c < n && count < selected.length; ++c){
+            if(!taken[c]) selected[count++] = candidates[c];
+        }
+        return selected;
+    }
+
+    private static void sortByDistance(int[] nodes, double[] distances, int n){
+        // insertion sort, the lists are short
+        for(int i=1; i < n; ++i){
+            int node = nodes[i];
+            double d = distances[i];
+            int j = i - 1;
+            while(j >= 0 && distances[j] > d){
+                nodes[j + 1] = nodes[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            nodes[j + 1] = node;
+            distances[j + 1] = d;
+        }
+    }
+
+    @Override
+    public void knn(DataMatrix query, int row, BoundedMaxHeap heap) {
+        int k = heap.capacity();
+        if(entryPoint < 0 || k == 0){
+            heap.sort();
+            return;
+        }
+
+        Search search = searches.get();
+        search.query = query;
+        search.queryRow = row;
+
+        int[] entries = { entryPoint };
+        for(int l = maxLevel; l > 0; --l){
+            entries[0] = search.greedy(entries[0], l);
+        }
+        BoundedMaxHeap found = search.layer(entries, 0, Math.max(efSearch, k + 1));
+
+        DataRow self = query.row(row);
+        for(int j=0; j < found.size(); ++j){
+            int i = found.index(j);
+            if(matrix.row(i) == self) continue;
+            heap.offer(i, found.distance(j));
+        }
+        if(distanceMeasure == null){
+            heap.sqrtDistances();
+        } else {
+            heap.sort();
+        }
+    }
+
+    @Override
+    public Neighbors range(DataMatrix query, int row, double radius) {
+        DataRow self = query.row(row);
+        RangeCollector collector = new RangeCollector();
+        int N = matrix.rowCount();
+        double bound = DistanceMeasureService.toSurrogate(radius, distanceMeasure);
+        for(int i=0; i < N; ++i){
+            if(matrix.row(i) == self) continue;
+            double surrogate = DistanceMeasureService.getSurrogateDistance(matrix, i, query, row, distanceMeasure);
+            if(surrogate < bound){
+                collector.add(i, DistanceMeasureService.toDistance(surrogate, distanceMeasure));
+            }
+        }
+        return collector.toNeighbors();
+    }
+
+    /**
+     * Per-thread state of a search: the query, the visited marks (a stamp per row, so clearing is free), the candidate
+     * min-heap and the result heap.
+     */
+    private class Search {
+        DataMatrix query;
+        int queryRow;
+
+        private final int[] visited;
+        private int stamp = 0;
+
+        private int[] candidates = new int[64];
+        private double[] candidateDistances = new double[64];
+        private int candidateCount;
+
+        private final BoundedMaxHeap results = new BoundedMaxHeap();
+        private int[] neighbors = new int[64];
+
+        Search(int size){
+            visited = new int[size];
+        }
+
+        double distanceTo(int node){
+            return DistanceMeasureService.getSurrogateDistance(matrix, node, query, queryRow, distanceMeasure);
+        }
+
+        // copies the neighbors of node on the level under its lock and returns their number
+        int neighbors(int node, int level){
+            synchronized (lock(node)){
+                int count = linkCount[node][level];
+                if(neighbors.length < count) neighbors = new int[links[node][level].length];
+                System.arraycopy(links[node][level], 0, neighbors, 0, count);
+                return count;
+            }
+        }
+
+        // walks to the neighbor closest to the query until no neighbor is closer
+        int greedy(int entry, int level){
+            int current = entry;
+            double best = distanceTo(current);
+            boolean improved = true;
+            while(improved){
+                improved = false;
+                int count = neighbors(current, level);
+                for(int j=0; j < count; ++j){
+                    double d = distanceTo(neighbors[j]);
+                    if(d < best){
+                        best = d;
+                        current = neighbors[j];
+                        improved = true;
+                    }
+                }
+            }
+            return current;
+        }
+
+        // beam search of width ef on the level; returns the nearest rows found, sorted ascending
+        BoundedMaxHeap layer(int[] entries, int level, int ef){
+            if(++stamp == 0){
+                Arrays.fill(visited, 0);
+                stamp = 1;
+            }
+            results.reset(ef);
+            candidateCount = 0;
+            for(int entry : entries){
+                if(visited[entry] == stamp) continue;
+                visited[entry] = stamp;
+                double d = distanceTo(entry);
+                results.offer(entry, d);
+                push(entry, d);
+            }
+
+            while(candidateCount > 0){
+                double d = candidateDistances[0];
+                int current = pop();
+                if(results.isFull() && d > results.bound()) break;
+
+                int count = neighbors(current, level);
+                for(int j=0; j < count; ++j){
+                    int neighbor = neighbors[j];
+                    if(visited[neighbor] == stamp) continue;
+                    visited[neighbor] = stamp;
+                    double distance = distanceTo(neighbor);
+                    if(results.offer(neighbor, distance)){
+                        push(neighbor, distance);
+                    }
+                }
+            }
+            return results.sort();
+        }
+
+        private void push(int node, double distance){
+            if(candidateCount == candidates.length){
+                candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                candidateDistances = Arrays.copyOf(candidateDistances, candidateCount * 2);
+            }
+            int i = candidateCount++;
+            while(i > 0){
+                int parent = (i - 1) >>> 1;
+                if(candidateDistances[parent] <= distance) break;
+                candidates[i] = candidates[parent];
+                candidateDistances[i] = candidateDistances[parent];
+                i = parent;
+            }
+            candidates[i] = node;
+            candidateDistances[i] = distance;
+        }
+
+        private int pop(){
+            int top = candidates[0];
+            int node = candidates[--candidateCount];
+            double distance = candidateDistances[candidateCount];
+            int i = 0;
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= candidateCount) break;
+                if(child + 1 < candidateCount && candidateDistances[child + 1] < candidateDistances[child]) child++;
+                if(candidateDistances[child] >= distance) break;
+                candidates[i] = candidates[child];
+                candidateDistances[i] = candidateDistances[child];
+                i = child;
+            }
+            if(candidateCount > 0){
+                candidates[i] = node;
+                candidateDistances[i] = distance;
+            }
+            return top;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.Arrays;
+import java.util.function.BiFunction;
+
+
+/**
+ * Incremental LOF for online scoring (Pokrajac, Lazarevic and Latecki, "Incremental Local Outlier Detection for Data
+ * Streams", 2007).
+ *
+ * Points are inserted and deleted one at a time; each update only recomputes the k-distance, lrd and LOF of the points
+ * it can affect: the reverse k-nearest neighbors of the changed point, their reverse neighbors (whose reachability
+ * distances changed) and the reverse neighbors of those (whose LOF averages changed). Every update costs one linear
+ * distance scan to find the affected points, plus work proportional to the size of those sets, instead of a refit.
+ *
+ * With windowSize > 0 the detector keeps a sliding window: inserting into a full window first expires the oldest point.
+ * Each inserted point is identified by the handle returned from insert().
+ */
+public class IncrementalLOF {
+
+    private int minPts = 10;
+    private int windowSize = 0;
+    private double threshold = 1.5;
+    private BiFunction<DataRow, DataRow, Double> distanceMeasure;
+    private DistanceMeasure vectorDistanceMeasure;
+    private DistanceMeasure measure;
+
+    // when set, the threshold follows the (1 - ratio) quantile of the LOF of the points at the time they were inserted
+    private boolean automaticThresholding = false;
+    private double automaticThresholdingRatio = 0.05;
+    private QuantileSketch thresholdSketch = new QuantileSketch();
+
+    private int dimension = -1;
+    private int capacity = 0;
+    private double[] data = new double[0];
+    private DataRow[] rows = new DataRow[0];
+    private boolean[] alive = new boolean[0];
+
+    // knn[p] holds the handles of the nearest neighbors of p, sorted ascending by knnDistance[p]
+    private int[][] knn = new int[0][];
+    private double[][] knnDistance = new double[0][];
+    private int[] knnSize = new int[0];
+    // rknn[p] holds the handles of the points that have p among their nearest neighbors
+    private IntList[] rknn = new IntList[0];
+    private double[] lrd = new double[0];
+    private double[] lof = new double[0];
+
+    private int size = 0;
+    private IntList free = new IntList();
+
+    // insertion order of the points, used to expire the oldest one; an entry is stale once its slot has been
+    // deleted or reused, which the insertion sequence number tells apart
+    private int[] window = new int[16];
+    private long[] windowSequence = new long[16];
+    private long[] sequence = new long[0];
+    private long nextSequence = 0;
+    private int windowHead = 0;
+    private int windowCount = 0;
+
+    // scratch state for one update
+    private double[] scan = new double[0];
+    private int[] stamp = new int[0];
+    private int currentStamp = 0;
+
+    public IncrementalLOF(){
+    }
+
+    public IncrementalLOF(int minPts, int windowSize){
+        this.minPts = minPts;
+        this.windowSize = windowSize;
+    }
+
+    public int getMinPts() {
+        return minPts;
+    }
+
+    public void setMinPts(int minPts) {
+        if(size > 0) throw new IllegalStateException("minPts cannot be changed once points have been inserted");
+        this.minPts = minPts;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        while(windowSize > 0 && size > windowSize){
+            expire();
+        }
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public boolean isAutomaticThresholding() {
+        return automaticThresholding;
+    }
+
+    public void setAutomaticThresholding(boolean automaticThresholding) {
+        this.automaticThresholding = automaticThresholding;
+    }
+
+    public double getAutomaticThresholdingRatio() {
+        return automaticThresholdingRatio;
+    }
+
+    public void setAutomaticThresholdingRatio(double automaticThresholdingRatio) {
+        this.automaticThresholdingRatio = automaticThresholdingRatio;
+    }
+
+    public QuantileSketch getThresholdSketch() {
+        return thresholdSketch;
+    }
+
+    // replaces the sketch behind automatic thresholding, e.g. with a fresh one to forget the scores seen so far
+    public void setThresholdSketch(QuantileSketch thresholdSketch) {
+        this.thresholdSketch = thresholdSketch;
+    }
+
+    public BiFunction<DataRow, DataRow, Double> getDistanceMeasure() {
+        return distanceMeasure;
+    }
+
+    public void setDistanceMeasure(BiFunction<DataRow, DataRow, Double> distanceMeasure) {
+        if(size > 0) throw new IllegalStateException("the distance measure cannot be changed once points have been inserted");
+        this.distanceMeasure = distanceMeasure;
+        this.vectorDistanceMeasure = null;
+        this.measure = DistanceMeasure.of(distanceMeasure);
+    }
+
+    public DistanceMeasure getVectorDistanceMeasure() {
+        return vectorDistanceMeasure;
+    }
+
+    public void setVectorDistanceMeasure(DistanceMeasure vectorDistanceMeasure) {
+        if(size > 0) throw new IllegalStateException("the distance measure cannot be changed once points have been inserted");
+        this.vectorDistanceMeasure = vectorDistanceMeasure;
+        this.distanceMeasure = null;
+        this.measure = vectorDistanceMeasure;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean contains(int handle){
+        return handle >= 0 && handle < capacity && alive[handle];
+    }
+
+    public DataRow row(int handle){
+        return rows[handle];
+    }
+
+    // the current LOF of an inserted point; the higher this value, the more likely the point is an outlier
+    public double score(int handle){
+        return lof[handle];
+    }
+
+    public boolean isAnomaly(int handle){
+        return lof[handle] > threshold;
+    }
+
+    /**
+     * Inserts a tuple, expiring the oldest point first when the window is full, and returns its handle.
+     */
+    public int insert(DataRow tuple){
+        if(windowSize > 0 && size >= windowSize){
+            expire();
+        }
+
+        int p = allocate(tuple);
+        int k = minPts;
+
+        // one scan gives both the neighbors of p and the points whose neighborhoods p enters
+        BoundedMaxHeap heap = BoundedMaxHeap.forThread(k);
+        for(int q = 0; q < capacity; ++q){
+            if(!alive[q] || q == p) continue;
+            double d = distance(p, q);
+            scan[q] = d;
+            heap.offer(q, d);
+        }
+        heap.sort();
+        knnSize[p] = heap.size();
+        for(int j=0; j < heap.size(); ++j){
+            knn[p][j] = heap.index(j);
+            knnDistance[p][j] = heap.distance(j);
+            rknn[heap.index(j)].add(p);
+        }
+
+        // S_kdist: points that get p as one of their k nearest neighbors
+        IntList updateKDistance = new IntList();
+        for(int q = 0; q < capacity; ++q){
+            if(!alive[q] || q == p) continue;
+            double d = scan[q];
+            if(knnSize[q] < k || d < knnDistance[q][knnSize[q] - 1]){
+                insertNeighbor(q, p, d);
+                updateKDistance.add(q);
+            }
+        }
+
+        IntList updateLrd = expand(updateKDistance);
+        updateLrd.add(p);
+        for(int j=0; j < updateLrd.size(); ++j){
+            int q = updateLrd.get(j);
+            lrd[q] = local_reachability_density(q);
+        }
+
+        IntList updateLof = expand(updateLrd);
+        for(int j=0; j < updateLof.size(); ++j){
+            int q = updateLof.get(j);
+            lof[q] = local_outlier_factor(q);
+        }
+
+        if(automaticThresholding && !Double.isNaN(lof[p]) && !Double.isInfinite(lof[p])){
+            thresholdSketch.update(lof[p]);
+            threshold = thresholdSketch.quantile(1 - automaticThresholdingRatio);
+        }
+
+        pushWindow(p);
+        return p;
+    }
+
+    /**
+     * Deletes an inserted point and updates the points whose neighborhoods contained it.
+     */
+    public void delete(int p){
+        if(!contains(p)) return;
+
+        alive[p] = false;
+        size--;
+
+        for(int j=0; j < knnSize[p]; ++j){
+            rknn[knn[p][j]].remove(p);
+        }
+        knnSize[p] = 0;
+
+        // S_kdist: points that lose p from their k nearest neighbors and need a new k-th neighbor
+        IntList updateKDistance = rknn[p].copy();
+        for(int j=0; j < updateKDistance.size(); ++j){
+            requery(updateKDistance.get(j));
+        }
+        rknn[p].clear();
+
+        IntList updateLrd = expand(updateKDistance);
+        for(int j=0; j < updateLrd.size(); ++j){
+            int q = updateLrd.get(j);
+            lrd[q] = local_reachability_density(q);
+        }
+
+        IntList updateLof = expand(updateLrd);
+        for(int j=0; j < updateLof.size(); ++j){
+            int q = updateLof.get(j);
+            lof[q] = local_outlier_factor(q);
+        }
+
+        rows[p] = null;
+        free.add(p);
+    }
+
+    // expires the oldest live point of the window
+    public void expire(){
+        while(windowCount > 0){
+            int p = window[windowHead];
+            long inserted = windowSequence[windowHead];
+            windowHead = (windowHead + 1) % window.length;
+            windowCount--;
+            if(alive[p] && sequence[p] == inserted){
+                delete(p);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Scores a tuple against the current points without inserting it.
+     */
+    public double evaluate(DataRow tuple){
+        double[] x = tuple.toArray();
+        BoundedMaxHeap heap = BoundedMaxHeap.forThread(minPts);
+        for(int q = 0; q < capacity; ++q){
+            if(!alive[q] || rows[q] == tuple) continue;
+            heap.offer(q, distance(x, tuple, q));
+        }
+        heap.sort();
+
+        int n = heap.size();
+        double sum_reach_dist = 0;
+        double sum_lrd = 0;
+        for(int j=0; j < n; ++j){
+            int o = heap.index(j);
+            sum_reach_dist += Math.max(k_distance(o), heap.distance(j));
+            sum_lrd += lrd[o];
+        }
+        double lrd_p = 1 / (sum_reach_dist / n);
+
+        if(Double.isInfinite(sum_lrd) && Double.isInfinite(lrd_p)){
+            return 1.0 / n;
+        }
+        return (sum_lrd / lrd_p) / n;
+    }
+
+    private double k_distance(int o){
+        return knnDistance[o][knnSize[o] - 1];
+    }
+
+    private double local_reachability_density(int p){
+        int n = knnSize[p];
+        double sum_reach_dist = 0;
+        for(int j=0; j < n; ++j){
+            sum_reach_dist += Math.max(k_distance(knn[p][j]), knnDistance[p][j]);
+        }
+        return 1 / (sum_reach_dist / n);
+    }
+
+    private double local_outlier_factor(int p){
+        int n = knnSize[p];
+        double sum_lrd = 0;
+        for(int j=0; j < n; ++j){
+            sum_lrd += lrd[knn[p][j]];
+        }
+
+        if(Double.isInfinite(sum_lrd) && Double.isInfinite(lrd[p])){
+            return 1.0 / n;
+        }
+        return (sum_lrd / lrd[p]) / n;
+    }
+
+    // adds p to the sorted neighbor list of q, dropping q's current k-th neighbor if the list is full
+    private void insertNeighbor(int q, int p, double d){
+        int[] index = knn[q];
+        double[] distance = knnDistance[q];
+        int pos = knnSize[q];
+        if(pos == minPts){
+            rknn[index[pos - 1]].remove(q);
+            pos--;
+        } else {
+            knnSize[q]++;
+        }
+        while(pos > 0 && distance[pos - 1] > d){
+            index[pos] = index[pos - 1];
+            distance[pos] = distance[pos - 1];
+            pos--;
+        }
+        index[pos] = p;
+        distance[pos] = d;
+        rknn[p].add(q);
+    }
+
+    // recomputes the k nearest neighbors of q from scratch
+    private void requery(int q){
+        for(int j=0; j < knnSize[q]; ++j){
+            rknn[knn[q][j]].remove(q);
+        }
+
+        BoundedMaxHeap heap = BoundedMaxHeap.forThread(minPts);
+        for(int o = 0; o < capacity; ++o){
+            if(!alive[o] || o == q) continue;
+            heap.offer(o, distance(q, o));
+        }
+        heap.sort();
+
+        knnSize[q] = heap.size();
+        for(int j=0; j < heap.size(); ++j){
+            knn[q][j] = heap.index(j);
+            knnDistance[q][j] = heap.distance(j);
+            rknn[heap.index(j)].add(q);
+        }
+    }
+
+    // the given points together with their reverse nearest neighbors, without duplicates
+    private IntList expand(IntList points){
+        if(currentStamp == Integer.MAX_VALUE){
+            Arrays.fill(stamp, 0);
+            currentStamp = 0;
+        }
+        int mark = ++currentStamp;
+        IntList result = new IntList();
+        for(int j=0; j < points.size(); ++j){
+            int q = points.get(j);
+            if(stamp[q] != mark){
+                stamp[q] = mark;
+                result.add(q);
+            }
+        }
+        for(int j=0; j < points.size(); ++j){
+            IntList reverse = rknn[points.get(j)];
+            for(int r=0; r < reverse.size(); ++r){
+                int q = reverse.get(r);
+                if(stamp[q] != mark){
+                    stamp[q] = mark;
+                    result.add(q);
+                }
+            }
+        }
+        return result;
+    }
+
+    private double distance(int a, int b){
+        if(measure == null){
+            return DistanceKernels.euclidean(data, a * dimension, data, b * dimension, dimension);
+        }
+        return measure.distance(rows[a], data, a * dimension, rows[b], data, b * dimension, dimension);
+    }
+
+    private double distance(double[] x, DataRow tuple, int b){
+        if(measure == null){
+            return DistanceKernels.euclidean(x, 0, data, b * dimension, Math.min(x.length, dimension));
+        }
+        return measure.distance(tuple, x, 0, rows[b], data, b * dimension, Math.min(x.length, dimension));
+    }
+
+    private int allocate(DataRow tuple){
+        double[] x = tuple.toArray();
+        if(dimension < 0){
+            dimension = x.length;
+        }
+
+        int p;
+        if(free.size() > 0){
+            p = free.removeLast();
+        } else {
+            if(capacity == alive.length){
+                grow(Math.max(16, capacity * 2));
+            }
+            p = capacity++;
+        }
+
+        // a shorter row is padded with zeros, as in a DataMatrix, rather than keeping the tail of a recycled slot
+        int length = Math.min(x.length, dimension);
+        System.arraycopy(x, 0, data, p * dimension, length);
+        Arrays.fill(data, p * dimension + length, (p + 1) * dimension, 0);
+        rows[p] = tuple;
+        alive[p] = true;
+        sequence[p] = nextSequence++;
+        knnSize[p] = 0;
+        rknn[p].clear();
+        lrd[p] = 0;
+        lof[p] = 0;
+        size++;
+        return p;
+    }
+
+    private void grow(int newCapacity){
+        int oldCapacity = alive.length;
+        data = Arrays.copyOf(data, newCapacity * dimension);
+        rows = Arrays.copyOf(rows, newCapacity);
+        alive = Arrays.copyOf(alive, newCapacity);
+        knn = Arrays.copyOf(knn, newCapacity);
+        knnDistance = Arrays.copyOf(knnDistance, newCapacity);
+        knnSize = Arrays.copyOf(knnSize, newCapacity);
+        rknn = Arrays.copyOf(rknn, newCapacity);
+        lrd = Arrays.copyOf(lrd, newCapacity);
+        lof = Arrays.copyOf(lof, newCapacity);
+        sequence = Arrays.copyOf(sequence, newCapacity);
+        scan = Arrays.copyOf(scan, newCapacity);
+        stamp = Arrays.copyOf(stamp, newCapacity);
+        for(int p = oldCapacity; p < newCapacity; ++p){
+            knn[p] = new int[minPts];
+            knnDistance[p] = new double[minPts];
+            rknn[p] = new IntList();
+        }
+    }
+
+    private void pushWindow(int p){
+        if(windowCount == window.length){
+            int[] temp = new int[window.length * 2];
+            long[] tempSequence = new long[window.length * 2];
+            for(int j=0; j < windowCount; ++j){
+                temp[j] = window[(windowHead + j) % window.length];
+                tempSequence[j] = windowSequence[(windowHead + j) % window.length];
+            }
+            window = temp;
+            windowSequence = tempSequence;
+            windowHead = 0;
+        }
+        int tail = (windowHead + windowCount) % window.length;
+        window[tail] = p;
+        windowSequence[tail] = sequence[p];
+        windowCount++;
+    }
+
+    // growable list of primitive ints
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        void add(int value){
+            if(size == values.length){
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void remove(int value){
+            for(int j=0; j < size; ++j){
+                if(values[j] == value){
+                    values[j] = values[--size];
+                    return;
+                }
+            }
+        }
+
+        IntList copy(){
+            IntList copy = new IntList();
+            copy.values = Arrays.copyOf(values, Math.max(size, 4));
+            copy.size = size;
+            return copy;
+        }
+
+        int removeLast(){
+            return values[--size];
+        }
+
+        int get(int j){
+            return values[j];
+        }
+
+        int size(){
+            return size;
+        }
+
+        void clear(){
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+
+/**
+ * KD-tree over the rows of a batch for the default euclidean distance. Each node splits its rows at the median of
+ * the dimension with the widest spread; rows are kept in leaf buckets of at most LEAF_SIZE. The tree keeps its own
+ * copy of the coordinates laid out in tree order, so scanning a leaf reads one contiguous block. Searches compare
+ * squared distances and only take the square root of the rows they return.
+ */
+public class KDTree implements NeighborIndex {
+
+    private static final int LEAF_SIZE = 16;
+
+    private final DataMatrix matrix;
+    private final int dimension;
+    // rows referenced by the tree, reordered so that every node owns the contiguous range [lo, hi)
+    private final int[] order;
+    // coordinates of row order[p] start at p * dimension
+    private final double[] points;
+    private final Node root;
+
+    private static class Node {
+        int lo;
+        int hi;
+        int dimension = -1;
+        double split;
+        Node left;
+        Node right;
+
+        boolean isLeaf(){
+            return dimension < 0;
+        }
+    }
+
+    public KDTree(DataMatrix matrix){
+        this.matrix = matrix;
+        this.dimension = matrix.dimension();
+
+        int m = matrix.rowCount();
+        order = new int[m];
+        for(int i=0; i < m; ++i){
+            order[i] = i;
+        }
+        root = build(0, m);
+
+        double[] data = matrix.data();
+        points = new double[m * dimension];
+        for(int p=0; p < m; ++p){
+            System.arraycopy(data, matrix.offset(order[p]), points, p * dimension, dimension);
+        }
+    }
+
+    private Node build(int lo, int hi){
+        Node node = new Node();
+        node.lo = lo;
+        node.hi = hi;
+        if(hi - lo <= LEAF_SIZE) return node;
+
+        int dimension = widestDimension(lo, hi);
+        if(dimension < 0) return node; // all rows identical
+
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, dimension);
+
+        node.dimension = dimension;
+        node.split = matrix.get(order[mid], dimension);
+        node.left = build(lo, mid);
+        node.right = build(mid, hi);
+        return node;
+    }
+
+    private int widestDimension(int lo, int hi){
+        int widest = -1;
+        double maxSpread = 0;
+        for(int d=0; d < dimension; ++d){
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for(int i = lo; i < hi; ++i){
+                double value = matrix.get(order[i], d);
+                if(value < min) min = value;
+                if(value > max) max = value;
+            }
+            if(max - min > maxSpread){
+                maxSpread = max - min;
+                widest = d;
+            }
+        }
+        return widest;
+    }
+
+    // partially sorts order[lo..hi] so that order[nth] holds the median along the dimension
+    private void select(int lo, int hi, int nth, int dimension){
+        while(lo < hi){
+            double pivot = matrix.get(order[(lo + hi) >>> 1], dimension);
+            int i = lo, j = hi;
+            while(i <= j){
+                while(matrix.get(order[i], dimension) < pivot) i++;
+                while(matrix.get(order[j], dimension) > pivot) j--;
+                if(i <= j){
+                    int temp = order[i];
+                    order[i++] = order[j];
+                    order[j--] = temp;
+                }
+            }
+            if(nth <= j) hi = j;
+            else if(nth >= i) lo = i;
+            else return;
+        }
+    }
+
+    @Override
+    public DataMatrix matrix() {
+        return matrix;
+    }
+
+    @Override
+    public void knn(DataMatrix query, int row, BoundedMaxHeap heap) {
+        if(heap.capacity() > 0 && root != null) {
+            knn(root, query.row(row), query.data(), query.offset(row), heap);
+        }
+        heap.sqrtDistances();
+    }
+
+    private void knn(Node node, DataRow self, double[] x, int offset, BoundedMaxHeap heap){
+        if(node.isLeaf()){
+            double[] buffer = DistanceKernels.blockBuffer();
+            for(int from = node.lo; from < node.hi; from += DistanceKernels.BLOCK_SIZE){
+                int to = Math.min(node.hi, from + DistanceKernels.BLOCK_SIZE);
+                DistanceKernels.squaredEuclidean(x, offset, points, from, to, dimension, buffer);
+                for(int p = from; p < to; ++p){
+                    int index = order[p];
+                    if(matrix.row(index) == self) continue;
+                    heap.offer(index, buffer[p - from]);
+                }
+            }
+            return;
+        }
+
+        double diff = x[offset + node.dimension] - node.split;
+        Node near = diff < 0 ? node.left : node.right;
+        Node far = diff < 0 ? node.right : node.left;
+
+        knn(near, self, x, offset, heap);
+        if(diff * diff <= heap.bound()){
+            knn(far, self, x, offset, heap);
+        }
+    }
+
+    @Override
+    public Neighbors range(DataMatrix query, int row, double radius) {
+        RangeCollector collector = new RangeCollector();
+        if(root != null) {
+            range(root, query.row(row), query.data(), query.offset(row), radius, radius * radius, collector);
+        }
+        return collector.toNeighbors();
+    }
+
+    private void range(Node node, DataRow self, double[] x, int offset, double radius, double squaredRadius, RangeCollector collector){
+        if(node.isLeaf()){
+            double[] buffer = DistanceKernels.blockBuffer();
+            for(int from = node.lo; from < node.hi; from += DistanceKernels.BLOCK_SIZE){
+                int to = Math.min(node.hi, from + DistanceKernels.BLOCK_SIZE);
+                DistanceKernels.squaredEuclidean(x, offset, points, from, to, dimension, buffer);
+                for(int p = from; p < to; ++p){
+                    int index = order[p];
+                    if(matrix.row(index) == self) continue;
+                    if(buffer[p - from] < squaredRadius){
+                        collector.add(index, Math.sqrt(buffer[p - from]));
+                    }
+                }
+            }
+            return;
+        }
+
+        double diff = x[offset + node.dimension] - node.split;
+        if(diff < radius){
+            range(node.left, self, x, offset, radius, squaredRadius, collector);
+        }
+        if(-diff < radius){
+            range(node.right, self, x, offset, radius, squaredRadius, collector);
+        }
+    }
+}
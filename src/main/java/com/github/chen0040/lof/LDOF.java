@@ -8,8 +8,9 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
-import java.util.stream.Collectors;
 
 
 /**
@@ -20,6 +21,14 @@ import java.util.stream.Collectors;
 public class LDOF {
 
     private BiFunction<DataRow, DataRow, Double> distanceMeasure;
+    private DistanceMeasure vectorDistanceMeasure;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private DistanceMeasure measure;
+
+    private NeighborIndexFactory neighborIndexFactory = NeighborSearch.AUTO;
+    private ExecutorService executor = ParallelRows.sharedExecutor(); // null scores on the calling thread
     private int minPts = 5; // k, namely the number of points in k-nearest neighborhood
     private int anomalyCount = 10; // number of outliers to row
 
@@ -29,6 +38,16 @@ public class LDOF {
     @Setter(AccessLevel.NONE)
     private DataFrame model;
 
+    @Setter(AccessLevel.NONE)
+    private NeighborIndex neighborIndex;
+
+    // most distances between neighbors kept for the neighborhoods that share them; 0 computes every pair
+    private int pairDistanceCacheSize = 1 << 20;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private PairDistanceCache pairDistances;
+
     public LDOF(){
         super();
         minPts = 5;
@@ -49,6 +68,18 @@ public class LDOF {
 
     public void setDistanceMeasure(BiFunction<DataRow, DataRow, Double> distanceMeasure) {
         this.distanceMeasure = distanceMeasure;
+        this.vectorDistanceMeasure = null;
+        this.measure = DistanceMeasure.of(distanceMeasure);
+    }
+
+    public DistanceMeasure getVectorDistanceMeasure() {
+        return vectorDistanceMeasure;
+    }
+
+    public void setVectorDistanceMeasure(DistanceMeasure vectorDistanceMeasure) {
+        this.vectorDistanceMeasure = vectorDistanceMeasure;
+        this.distanceMeasure = null;
+        this.measure = vectorDistanceMeasure;
     }
 
     public int getMinPts() {
@@ -72,32 +103,89 @@ public class LDOF {
 
 
     public double knn_inner_distance(DataFrame context, DataRow o, List<TupleTwo<DataRow, Double>> result){
-        List<DataRow> nn = result.stream().map(TupleTwo::_1).collect(Collectors.toList());
+        int n = result.size();
 
         double distance_sum = 0;
-        for(int i=0; i < nn.size(); ++i){
-            for(int j=i+1; j < nn.size(); ++j){
-                DataRow ti = nn.get(i);
-                DataRow tj = nn.get(j);
-                distance_sum += DistanceMeasureService.getDistance(context, ti, tj, distanceMeasure);
+        for(int i=0; i < n; ++i){
+            DataRow ti = result.get(i)._1();
+            for(int j=i+1; j < n; ++j){
+                DataRow tj = result.get(j)._1();
+                distance_sum += DistanceMeasureService.getDistance(context, ti, tj, measure);
             }
         }
         distance_sum *= 2; //because of symmetry
 
-        double avg_distance = distance_sum / ((nn.size()-1) * nn.size());
+        double avg_distance = distance_sum / ((n-1) * n);
 
         return avg_distance;
     }
 
     public double local_distance_outlier_factor(DataFrame batch, DataRow p, int k){
-        List<TupleTwo<DataRow, Double>> result = DistanceMeasureService.getKNearestNeighbors(batch, p, k, distanceMeasure);
+        List<TupleTwo<DataRow, Double>> result = DistanceMeasureService.getKNearestNeighbors(batch, p, k, measure);
         double knn_distance = knn_distance(p, result);
         double knn_inner_distance = knn_inner_distance(batch, p, result);
 
         return knn_distance / knn_inner_distance;
     }
 
+    // LDOF of row p of the fitted batch, or NaN when it is certain to be below cutoff, see topOutliers
+    private double local_distance_outlier_factor(int p, int k, double cutoff){
+        DataMatrix matrix = neighborIndex.matrix();
+        Neighbors knn = neighborIndex.knn(p, k);
+        int n = knn.size();
+
+        double knn_distance = 0;
+        for(int j=0; j < n; ++j){
+            knn_distance += knn.distance(j);
+        }
+        knn_distance /= n;
+
+        // with a metric, d(a, b) >= |d(p, a) - d(p, b)|, and the neighbors are sorted by their distance to p
+        boolean bounded = measure == null && n > 1 && cutoff > Double.NEGATIVE_INFINITY;
+        double remaining = 0; // lower bound of the pair distances not summed yet
+        if(bounded){
+            for(int j=0; j < n; ++j){
+                remaining += knn.distance(j) * (2 * j - (n - 1));
+            }
+            if(upperBound(knn_distance, remaining, n) < cutoff) return Double.NaN;
+        }
+
+        double distance_sum = 0;
+        for(int i=0; i < n; ++i){
+            for(int j=i+1; j < n; ++j){
+                distance_sum += pairDistance(matrix, knn.index(i), knn.index(j));
+            }
+            if(bounded){
+                for(int j=i+1; j < n; ++j){
+                    remaining -= knn.distance(j) - knn.distance(i);
+                }
+                if(upperBound(knn_distance, distance_sum + Math.max(0, remaining), n) < cutoff) return Double.NaN;
+            }
+        }
+        distance_sum *= 2; //because of symmetry
+
+        double knn_inner_distance = distance_sum / ((n-1) * n);
+
+        return knn_distance / knn_inner_distance;
+    }
+
+    // overlapping neighborhoods share most of their pairs, so the distances go through the pair cache when there is one
+    private double pairDistance(DataMatrix matrix, int a, int b){
+        if(pairDistances == null){
+            return DistanceMeasureService.getDistance(matrix, a, matrix, b, measure);
+        }
+        double distance = pairDistances.get(a, b);
+        if(Double.isNaN(distance)){
+            distance = DistanceMeasureService.getDistance(matrix, a, matrix, b, measure);
+            pairDistances.put(a, b, distance);
+        }
+        return distance;
+    }
 
+    // LDOF bound from a lower bound of the sum of the pair distances, loosened to absorb rounding
+    private static double upperBound(double knn_distance, double pairDistanceSum, int n){
+        return knn_distance / (pairDistanceSum * 2 / ((n-1) * n) * (1 - 1e-9));
+    }
 
     public DataFrame getModel(){
         return model;
@@ -105,34 +193,80 @@ public class LDOF {
 
     public DataFrame fitAndTransform(DataFrame batch) {
         this.model = batch.makeCopy();
-
-        List<DataRow> maybeoutliers = new ArrayList<DataRow>();
-        final HashMap<DataRow, Double> ldof_scores = new HashMap<DataRow, Double>();
+        this.neighborIndex = neighborIndexFactory.build(DataMatrix.of(model), measure);
 
         int m = model.rowCount();
+        // no larger than the number of pairs the neighborhoods can hold
+        long pairs = (long) m * minPts * (minPts - 1) / 2;
+        this.pairDistances = pairDistanceCacheSize > 0 && pairs > 0 ? new PairDistanceCache((int) Math.min(pairDistanceCacheSize, pairs)) : null;
+
         for(int i=0; i < m; ++i){
-            DataRow tuple = model.row(i);
-            tuple.setCategoricalTargetCell("anomaly", "0");
+            model.row(i).setCategoricalTargetCell("anomaly", "0");
+        }
+
+        for(int i : topOutliers(anomalyCount)){
+            model.row(i).setCategoricalTargetCell("anomaly", "1");
+        }
 
-            double ldof = local_distance_outlier_factor(model, tuple, minPts);
+        return this.getModel();
+    }
 
-            if(ldof >= ldofLB){
-                maybeoutliers.add(tuple);
-                ldof_scores.put(tuple, ldof);
+    /**
+     * Returns the rows of the fitted batch with the n largest LDOF of at least ldofLB, in descending order of LDOF, ties
+     * in row order. Only n candidates are kept per chunk of rows, in a bounded heap, and each chunk publishes the n-th
+     * best LDOF it has seen. With the built-in euclidean distance, the triangle inequality bounds the distance between
+     * two neighbors of p from below by the difference of their distances to p, which bounds the LDOF of p from above:
+     * a row whose bound is below ldofLB or the best published LDOF is skipped before its O(k^2) inner distance is
+     * computed, or abandoned part-way once the pairs summed so far settle it.
+     */
+    public int[] topOutliers(int n){
+        int m = model.rowCount();
+        if(n <= 0 || m == 0) return new int[0];
+
+        AtomicLong published = new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+        List<BoundedMaxHeap> heaps = Collections.synchronizedList(new ArrayList<>());
+        ParallelRows.forEach(executor, m, (from, to) -> {
+            // keys are negated scores, so the heap keeps the n largest; rows come in order, so ties keep the first
+            BoundedMaxHeap heap = new BoundedMaxHeap(n);
+            for(int i = from; i < to; ++i){
+                double cutoff = Math.max(ldofLB, Double.longBitsToDouble(published.get()));
+                double ldof = local_distance_outlier_factor(i, minPts, cutoff);
+                if(!(ldof >= ldofLB)) continue;
+                if(heap.offer(i, -ldof) && heap.isFull()){
+                    publish(published, -heap.bound());
+                }
+            }
+            heaps.add(heap);
+        });
+
+        List<Integer> candidates = new ArrayList<>();
+        Map<Integer, Double> ldof_scores = new HashMap<>();
+        for(BoundedMaxHeap heap : heaps){
+            for(int j=0; j < heap.size(); ++j){
+                candidates.add(heap.index(j));
+                ldof_scores.put(heap.index(j), -heap.distance(j));
             }
         }
 
-        // sort descendingly based on the ldof score
-        Collections.sort(maybeoutliers, (o1, o2) -> {
-            double ldof1 = ldof_scores.get(o1);
-            double ldof2 = ldof_scores.get(o2);
-            return Double.compare(ldof2, ldof1);
+        // sort descendingly based on the ldof score, then by row
+        candidates.sort((i1, i2) -> {
+            int order = Double.compare(ldof_scores.get(i2), ldof_scores.get(i1));
+            return order != 0 ? order : Integer.compare(i1, i2);
         });
 
-        for(int i=0; i < anomalyCount && i < maybeoutliers.size(); ++i){
-            maybeoutliers.get(i).setCategoricalTargetCell("anomaly", "1");
+        int count = Math.min(n, candidates.size());
+        int[] top = new int[count];
+        for(int i=0; i < count; ++i){
+            top[i] = candidates.get(i);
         }
+        return top;
+    }
 
-        return this.getModel();
+    private static void publish(AtomicLong published, double score){
+        long current;
+        do {
+            current = published.get();
+            if(Double.longBitsToDouble(current) >= score) return;
+        } while(!published.compareAndSet(current, Double.doubleToLongBits(score)));
     }
 }
@@ -7,9 +7,9 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.function.BiFunction;
 
 
@@ -25,67 +25,103 @@ public class LOCI {
     private double alpha = 0.5;
     private double kSigma = 3;
 
+    @Getter(AccessLevel.NONE)
     @Setter(AccessLevel.NONE)
-    private double[][] distanceMatrix;
+    private PackedDistanceMatrix distanceMatrix;
+
+    // FLOAT halves the memory of the distance matrix at the cost of rounding distances to single precision; HALF
+    // quarters it, keeping about three significant digits, and admits no distance above PackedDistanceMatrix.HALF_MAX
+    private PackedDistanceMatrix.Precision precision = PackedDistanceMatrix.Precision.DOUBLE;
+
+    // bytes the distance matrix and the sorted neighbor distances may take together on the heap; what does not fit is
+    // memory-mapped from a temporary file
+    private long distanceMemoryBudget = Runtime.getRuntime().maxMemory() / 2;
 
     private BiFunction<DataRow, DataRow, Double> distanceMeasure;
+    private DistanceMeasure vectorDistanceMeasure;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private DistanceMeasure measure;
+
+    // runs the distance matrix, neighborhoods and MDEF tests over row ranges; null runs them on the calling thread
+    private ExecutorService executor = ParallelRows.sharedExecutor();
 
 
     public LOCI(){
     }
 
-    public DataFrame fitAndTransform(DataFrame batch) {
-        batch = batch.makeCopy();
+    public void setDistanceMeasure(BiFunction<DataRow, DataRow, Double> distanceMeasure) {
+        this.distanceMeasure = distanceMeasure;
+        this.vectorDistanceMeasure = null;
+        this.measure = DistanceMeasure.of(distanceMeasure);
+    }
 
-        int m = batch.rowCount();
+    public void setVectorDistanceMeasure(DistanceMeasure vectorDistanceMeasure) {
+        this.vectorDistanceMeasure = vectorDistanceMeasure;
+        this.distanceMeasure = null;
+        this.measure = vectorDistanceMeasure;
+    }
 
-        distanceMatrix = new double[m][];
-        for(int i=0; i < m; ++i) {
-            distanceMatrix[i] = new double[m];
-        }
+    // the pairwise distances of the last batch fitted, or null before the first fit
+    public PackedDistanceMatrix getPackedDistanceMatrix(){
+        return distanceMatrix;
+    }
 
-        double maxDistance = Double.MIN_VALUE;
+    /**
+     * The pairwise distances of the last batch fitted as a dense m x m array, or null before the first fit. The array
+     * is copied out of the packed matrix on every call, taking m^2 doubles.
+     *
+     * @deprecated use getPackedDistanceMatrix(), which reads the distances without copying them
+     */
+    @Deprecated
+    public double[][] getDistanceMatrix(){
+        if(distanceMatrix == null){
+            return null;
+        }
+        int m = distanceMatrix.size();
+        double[][] dense = new double[m][m];
         for(int i=0; i < m; ++i){
-            DataRow tuple_i = batch.row(i);
-            for(int j=i+1; j < m; ++j){
-                DataRow tuple_j = batch.row(j);
-                double distance = DistanceMeasureService.getDistance(batch, tuple_i, tuple_j, distanceMeasure);
-                distanceMatrix[i][j] = distance;
-                distanceMatrix[j][i] = distance;
-                maxDistance = Math.max(maxDistance, distance);
+            for(int j = i + 1; j < m; ++j){
+                dense[i][j] = dense[j][i] = distanceMatrix.get(i, j);
             }
         }
+        return dense;
+    }
 
-        r_max = maxDistance / alpha;
+    public DataFrame fitAndTransform(DataFrame batch) {
+        batch = batch.makeCopy();
 
-        List<List<Integer>> D = new ArrayList<>();
+        int m = batch.rowCount();
 
-        for(int i=0; i < m; ++i){
-            List<Integer> D_i = get_r_neighbors(i, r_max, distanceMatrix);
-            D.add(D_i);
+        DataMatrix matrix = DataMatrix.of(batch);
+
+        if(distanceMatrix != null){
+            distanceMatrix.close();
         }
+        distanceMatrix = PackedDistanceMatrix.compute(matrix, measure, precision, distanceMemoryBudget, executor);
 
-        for(int i=0; i < m; ++i){
-            List<Integer> D_i = D.get(i);
-            int n = D_i.size();
-            boolean isOutlier = false;
-            for(int j=0; j < n; ++j){
-                double r = distanceMatrix[i][D_i.get(j)];
-                double alphar = alpha * r;
-                int n_pi_alphar = get_alphar_neighbor_count(i, alphar, D_i, distanceMatrix);
-                double nhat_pi_r_alpha = get_nhat_pi_r_alpha(i, alpha, r, D, distanceMatrix);
-                double sigma_nhat_pi_r_alpha = get_sigma_nhat_pi_r_alpha(i, alpha, r, D, distanceMatrix, nhat_pi_r_alpha);
-                double MDEF = 1 - n_pi_alphar / nhat_pi_r_alpha;
-                double sigma_MDEF = sigma_nhat_pi_r_alpha / nhat_pi_r_alpha;
-
-                if(MDEF  >  kSigma *sigma_MDEF){
-                    isOutlier = true;
-                    break;
+        double maxDistance = Math.max(Double.MIN_VALUE, distanceMatrix.maxDistance());
+        r_max = maxDistance / alpha;
+
+        double[] scores = new double[m];
+        double[] criticalRadii = new double[m];
+        try(SortedDistances D = sortedDistances()) {
+            ParallelRows.forEach(executor, m, (from, to) -> {
+                int[] members = new int[m];
+                int[] counts = new int[m];
+                double[] radii = new double[m];
+                for(int i = from; i < to; ++i){
+                    scores[i] = score(i, D, members, counts, radii, criticalRadii);
                 }
-            }
+            });
+        }
 
+        for(int i=0; i < m; ++i){
             DataRow tuple = batch.row(i);
-            if(isOutlier){
+            tuple.setTargetCell("LOCI", scores[i]);
+            tuple.setTargetCell("LOCI_radius", criticalRadii[i]);
+            if(scores[i] > kSigma){
                 tuple.setCategoricalTargetCell("anomaly","1");
             }else{
                 tuple.setCategoricalTargetCell("anomaly","0");
@@ -97,47 +133,105 @@ public class LOCI {
         return batch;
     }
 
-    private double get_sigma_nhat_pi_r_alpha(int i, double alpha, double r, List<List<Integer>> D, double[][] distanceMatrix, double n_hat){
-        List<Integer> D_i = D.get(i);
-        int n_pi_r = D_i.size()+1; // including i itself
-        double alphar = alpha * r;
-        double sum = 0;
-        for(Integer j : D_i){
-            sum += Math.pow(get_alphar_neighbor_count(j, alphar, D.get(j), distanceMatrix) - n_hat, 2);
-        }
-        return Math.sqrt(sum / n_pi_r);
+    // the sorted distances of every row up to neighborReach(), charged to what the distance matrix left of the memory
+    // budget
+    SortedDistances sortedDistances(){
+        long remaining = Math.max(0, distanceMemoryBudget - distanceMatrix.heapBytes());
+        return SortedDistances.of(distanceMatrix, neighborReach(), remaining, executor);
     }
 
-    private double get_nhat_pi_r_alpha(int i, double alpha, double r, List<List<Integer>> D, double[][] distanceMatrix) {
-        List<Integer> D_i = D.get(i);
-        int n_pi_r = D_i.size()+1; // including i itself
-        double alphar = alpha * r;
-        double sum = 0;
-        for(Integer j : D_i){
-            sum += get_alphar_neighbor_count(j, alphar, D.get(j), distanceMatrix);
+    // The sweep of a row reads the counts n(j, alpha * r) of its neighbors j only at radii r it has a neighbor at, so
+    // never beyond alpha times the largest stored distance, which a reduced precision may round above maxDistance. No
+    // distance beyond that reach is kept.
+    double neighborReach(){
+        double maxDistance = distanceMatrix.maxDistance();
+        return alpha * Math.max(maxDistance, distanceMatrix.precision().round(maxDistance));
+    }
+
+    // Evaluates the MDEF of i at each critical radius r, the distances to its r_max-neighbors in increasing order, and
+    // returns the largest MDEF / sigma_MDEF, writing the radius it is reached at into criticalRadii[i]. As r grows, the
+    // count n(j, alpha * r) of every neighbor j only moves forward along the sorted distances of j, so the sums S1 and
+    // S2 of the counts and of their squares are updated incrementally rather than recounted. The critical radii of i
+    // are sorted here, in radii, rather than kept in D.
+    private double score(int i, SortedDistances D, int[] members, int[] counts, double[] radii, double[] criticalRadii){
+        int m = distanceMatrix.size();
+        int n = 0;
+        for(int j=0; j < m; ++j){
+            double distance = distanceMatrix.get(i, j);
+            if(j != i && distance < r_max){
+                members[n] = j;
+                counts[n] = 0;
+                radii[n] = distance;
+                n++;
+            }
         }
-        return sum / n_pi_r;
+        Arrays.sort(radii, 0, n);
+
+        int n_pi_r = n + 1; // including i itself
+        double s1 = n, s2 = n; // every n(j, alpha * r) starts at 1, counting j itself
+        double maxRatio = Double.NEGATIVE_INFINITY;
+        double criticalRadius = 0;
+        int below = 0; // neighbors of i within alpha * r
+        for(int t=0; t < n; ++t){
+            double r = radii[t];
+            double alphar = alpha * r;
+
+            for(int k=0; k < n; ++k){
+                int j = members[k];
+                int c = counts[k];
+                int length = D.length(j);
+                while(c < length && D.get(j, c) < alphar){
+                    s1 += 1;
+                    s2 += 2 * c + 3; // (c + 2)^2 - (c + 1)^2
+                    c++;
+                }
+                counts[k] = c;
+            }
+
+            while(below < n && radii[below] < alphar) below++;
+            int n_pi_alphar = 1 + below;
+            double nhat_pi_r_alpha = s1 / n_pi_r;
+            double variance = (s2 - 2 * nhat_pi_r_alpha * s1 + n * nhat_pi_r_alpha * nhat_pi_r_alpha) / n_pi_r;
+            double sigma_nhat_pi_r_alpha = Math.sqrt(Math.max(0, variance));
+            double MDEF = 1 - n_pi_alphar / nhat_pi_r_alpha;
+            double sigma_MDEF = sigma_nhat_pi_r_alpha / nhat_pi_r_alpha;
+
+            // MDEF > kSigma * sigma_MDEF at some radius exactly when the largest ratio exceeds kSigma; a positive MDEF
+            // with no deviation at all is an outlier for any kSigma
+            double ratio = sigma_MDEF > 0 ? MDEF / sigma_MDEF : (MDEF > 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY);
+            if(ratio > maxRatio){
+                maxRatio = ratio;
+                criticalRadius = r;
+            }
+        }
+        criticalRadii[i] = criticalRadius;
+        return maxRatio;
     }
 
-    private int get_alphar_neighbor_count(int i, double alphar, List<Integer> d_i, double[][] distanceMatrix) {
-        int count = 1; // including i itself
-        for(Integer j : d_i){
-            double distance = distanceMatrix[i][j];
-            if(distance < alphar){
-                count++;
+    public List<Integer> get_r_neighbors(int i, double r, PackedDistanceMatrix distanceMatrix){
+        int m = distanceMatrix.size();
+        List<Integer> rnn = new ArrayList<Integer>();
+        for(int j=0; j < m; ++j){
+            if(i==j) continue;
+            double distance = distanceMatrix.get(i, j);
+            if(distance < r){
+                rnn.add(j);
             }
         }
 
-        return count;
+        return rnn;
     }
 
+    /**
+     * @deprecated use get_r_neighbors(int, double, PackedDistanceMatrix)
+     */
+    @Deprecated
     public List<Integer> get_r_neighbors(int i, double r, double[][] distanceMatrix){
         int m = distanceMatrix.length;
         List<Integer> rnn = new ArrayList<Integer>();
         for(int j=0; j < m; ++j){
             if(i==j) continue;
-            double distance = distanceMatrix[i][j];
-            if(distance < r){
+            if(distanceMatrix[i][j] < r){
                 rnn.add(j);
             }
         }
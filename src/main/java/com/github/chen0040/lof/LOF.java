@@ -9,9 +9,8 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.concurrent.ExecutorService;
 import java.util.function.BiFunction;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -38,6 +37,18 @@ public class LOF {
     private static final Logger logger = Logger.getLogger(String.valueOf(LOF.class));
 
     private BiFunction<DataRow, DataRow, Double> distanceMeasure;
+    // a distance evaluated on the values in place, without boxing; replaces distanceMeasure while set
+    private DistanceMeasure vectorDistanceMeasure;
+
+    // the measure in effect: vectorDistanceMeasure, or distanceMeasure adapted to it, or null for euclidean
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private DistanceMeasure measure;
+
+    private NeighborIndexFactory neighborIndexFactory = NeighborSearch.AUTO;
+
+    // runs the row searches and scoring when parallel is set; shared across detectors unless replaced
+    private ExecutorService executor = ParallelRows.sharedExecutor();
 
     @Setter(AccessLevel.NONE)
     private double minScore;
@@ -46,36 +57,23 @@ public class LOF {
 
     private DataFrame model;
 
+    @Setter(AccessLevel.NONE)
+    private NeighborhoodCache cache;
 
-    protected void adjustThreshold(DataFrame batch){
-        int m = batch.rowCount();
-
-        List<Integer> orders = new ArrayList<>();
-        List<Double> probs = new ArrayList<>();
-
-        for(int i=0; i < m; ++i){
-            DataRow tuple = batch.row(i);
-            double prob = evaluate(tuple);
-            probs.add(prob);
-            orders.add(i);
-        }
+    // raw LOF of every row of the fitted batch, in row order
+    @Setter(AccessLevel.NONE)
+    private double[] scores;
 
-        final List<Double> probs2 = probs;
-        // sort descendingly by probability values
-        Collections.sort(orders, (h1, h2) -> {
-            double prob1 = probs2.get(h1);
-            double prob2 = probs2.get(h2);
-            return Double.compare(prob2, prob1);
-        });
 
-        int selected_index = autoThresholdingCaps(orders.size());
-        if(selected_index >= orders.size()){
-            threshold = probs.get(orders.get(orders.size() - 1));
-        }
-        else{
-            threshold = probs.get(orders.get(selected_index));
-        }
+    protected void adjustThreshold(DataFrame batch){
+        adjustThreshold(scoreAll(batch));
+    }
 
+    // picks the threshold from the normalized scores of a batch: the score ranked autoThresholdingCaps() from the top
+    private void adjustThreshold(double[] scores){
+        int m = scores.length;
+        int selected_index = autoThresholdingCaps(m);
+        threshold = Thresholds.kthLargest(scores, Math.min(selected_index, m - 1));
     }
 
     public LOF(){
@@ -101,142 +99,103 @@ public class LOF {
         return distanceMeasure;
     }
 
-    public boolean isAnomaly(DataRow tuple) {
-        double score_lof = evaluate(tuple);
-        return score_lof > threshold;
+    public void setDistanceMeasure(BiFunction<DataRow, DataRow, Double> distanceMeasure) {
+        this.distanceMeasure = distanceMeasure;
+        this.vectorDistanceMeasure = null;
+        this.measure = DistanceMeasure.of(distanceMeasure);
     }
 
-    private class ScoreTask implements Callable<Double>{
-        private DataFrame batch;
-        private DataRow tuple;
-        public ScoreTask(DataFrame batch, DataRow tuple){
-            this.batch = batch;
-            this.tuple = tuple;
-        }
-
-        public Double call() throws Exception {
-            double score = score_lof_sync(batch, tuple);
-            return score;
-        }
+    public void setVectorDistanceMeasure(DistanceMeasure vectorDistanceMeasure) {
+        this.vectorDistanceMeasure = vectorDistanceMeasure;
+        this.distanceMeasure = null;
+        this.measure = vectorDistanceMeasure;
     }
 
-
+    public boolean isAnomaly(DataRow tuple) {
+        double score_lof = evaluate(tuple);
+        return score_lof > threshold;
+    }
 
     public DataFrame fitAndTransform(DataFrame batch) {
         this.model = batch.makeCopy();
 
         int m = model.rowCount();
 
-        minScore = Double.MAX_VALUE;
-        maxScore = Double.NEGATIVE_INFINITY;
-
+        ExecutorService executor = parallel ? this.executor : null;
+        cache = new NeighborhoodCache(neighborIndexFactory.build(DataMatrix.of(model), measure), minPtsLB, minPtsUB, executor);
 
-
-        if(parallel) {
-            ExecutorService executor = Executors.newFixedThreadPool(10);
-            List<ScoreTask> tasks = new ArrayList<>();
-            for (int i = 0; i < m; ++i) {
-                tasks.add(new ScoreTask(model, model.row(i)));
+        scores = new double[m];
+        ParallelRows.forEach(executor, m, (from, to) -> {
+            for(int i = from; i < to; ++i){
+                scores[i] = cache.score(i);
             }
+        });
 
-            try {
-                List<Future<Double>> results = executor.invokeAll(tasks);
-                executor.shutdown();
-                for (int i = 0; i < m; ++i) {
-                    double score = results.get(i).get();
-                    if(Double.isNaN(score)) continue;
-                    if(Double.isInfinite(score)) continue;
-                    minScore = Math.min(score, minScore);
-                    maxScore = Math.max(score, maxScore);
-                }
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
-        }else{
-            for(int i=0; i < m; ++i){
-                double score = score_lof_sync(model, model.row(i));
-                if(Double.isNaN(score)) continue;
-                if(Double.isInfinite(score)) continue;
-                minScore = Math.min(score, minScore);
-                maxScore = Math.max(score, maxScore);
-            }
+        minScore = Double.MAX_VALUE;
+        maxScore = Double.NEGATIVE_INFINITY;
+        for(int i=0; i < m; ++i){
+            double score = scores[i];
+            if(Double.isNaN(score)) continue;
+            if(Double.isInfinite(score)) continue;
+            minScore = Math.min(score, minScore);
+            maxScore = Math.max(score, maxScore);
+        }
+
+        // the rows of the batch are scored once; evaluate() on a row of the model gives the same normalized score
+        double[] normalized = new double[m];
+        for(int i=0; i < m; ++i){
+            normalized[i] = normalize(scores[i]);
         }
 
         if(automaticThresholding){
-            adjustThreshold(model);
+            adjustThreshold(normalized);
         }
 
         for(int i=0; i < m; ++i){
             DataRow tuple = model.row(i);
-            tuple.setCategoricalTargetCell("anomaly", isAnomaly(tuple) ? "1" : "0");
+            tuple.setTargetCell("LOF", normalized[i]);
+            tuple.setCategoricalTargetCell("anomaly", normalized[i] > threshold ? "1" : "0");
         }
 
         return this.model;
     }
 
-    private class LOFTask implements Callable<Double>{
-        private DataFrame batch;
-        private DataRow tuple;
-        private int minPts;
-
-        public LOFTask(DataFrame batch, DataRow tuple, int minPts){
-            this.batch = batch;
-            this.tuple = tuple;
-            this.minPts = minPts;
-        }
-
-        public Double call() throws Exception {
-            double lof = local_outlier_factor(batch, tuple, minPts);
-            return lof;
-        }
+    public double evaluate(DataRow tuple){
+        return normalize(cache.score(tuple));
     }
 
-    private double score_lof_sync(DataFrame batch, DataRow tuple){
-        double maxLOF = Double.NEGATIVE_INFINITY;
-
-        for(int minPts = minPtsLB; minPts <= minPtsUB; ++minPts) { // the number of nearest neighbors used in defining the local neighborhood of the object.
-            double lof = local_outlier_factor(batch, tuple, minPts);
-            if(Double.isNaN(lof)) continue;
-            maxLOF = Math.max(maxLOF, lof);
-        }
-
-
-        return maxLOF;
+    /**
+     * Scores every row of a batch against the fitted model, in the same way as evaluate(), and returns the scores in
+     * row order. The rows are converted once into a DataMatrix and scored in chunks of contiguous rows on the
+     * executor, with the neighbor-search scratch state reused across the rows of a chunk.
+     */
+    public double[] scoreAll(DataFrame batch){
+        return score(DataMatrix.of(batch));
     }
 
-    private double score_lof_async(DataFrame batch, DataRow tuple){
-        if(!parallel){
-            return score_lof_sync(batch, tuple);
-        }
-
-        double maxLOF = 0;
-
-        ExecutorService executor = Executors.newFixedThreadPool(Math.min(8, minPtsUB - minPtsLB + 1));
-
-        List<LOFTask> tasks = new ArrayList<>();
-        for(int minPts = minPtsLB; minPts <= minPtsUB; ++minPts) { // the number of nearest neighbors used in defining the local neighborhood of the object.
-            tasks.add(new LOFTask(batch, tuple, minPts));
+    /**
+     * Scores raw feature vectors against the fitted model, in the same way as evaluate(). As the vectors have no
+     * DataRow behind them, this requires the built-in euclidean distance or a vectorDistanceMeasure.
+     */
+    public double[] score(double[][] batch){
+        if(measure != null && !measure.supportsVectors()) {
+            throw new IllegalStateException("score(double[][]) requires the built-in distance or a vectorDistanceMeasure; use scoreAll(DataFrame) with a distance measure defined on DataRows");
         }
+        return score(DataMatrix.of(batch));
+    }
 
-        try {
-            List <Future<Double>> results = executor.invokeAll(tasks);
-            executor.shutdown();
-            for(int i=0; i < results.size(); ++i){
-                double lof = results.get(i).get();
-                if(Double.isNaN(lof)) continue;
-                if(Double.isInfinite(lof)) continue;
-                maxLOF = Math.max(maxLOF, lof);
+    private double[] score(DataMatrix query){
+        int m = query.rowCount();
+        double[] scores = new double[m];
+        ParallelRows.forEach(parallel ? executor : null, m, (from, to) -> {
+            for(int i = from; i < to; ++i){
+                scores[i] = normalize(cache.score(query, i));
             }
-        } catch (InterruptedException | ExecutionException e) {
-            logger.log(Level.SEVERE, "score_lof_async failed", e);
-        }
-
-        return maxLOF;
+        });
+        return scores;
     }
 
-    public double evaluate(DataRow tuple){
-        double score = score_lof_async(model, tuple);
-
+    private double normalize(double score){
         //logger.info(String.format("score: %f minScore: %f, maxScore: %f", score, minScore, maxScore));
 
         score -= minScore;
@@ -252,18 +211,18 @@ public class LOF {
 
 
     public double k_distance(DataFrame batch, DataRow o, int k){
-        TupleTwo<DataRow, Double> kth = DistanceMeasureService.getKthNearestNeighbor(batch, o, k, distanceMeasure);
+        TupleTwo<DataRow, Double> kth = DistanceMeasureService.getKthNearestNeighbor(batch, o, k, measure);
         return kth._2();
     }
 
     private double reach_dist(DataFrame batch, DataRow p, DataRow o, int k){
-        double distance_p_o = DistanceMeasureService.getDistance(batch, p, o, distanceMeasure);
+        double distance_p_o = DistanceMeasureService.getDistance(batch, p, o, measure);
         double distance_k_o = k_distance(batch, o, k);
         return Math.max(distance_k_o, distance_p_o);
     }
 
     private double local_reachability_density(DataFrame batch, DataRow p, int k){
-        List<TupleTwo<DataRow, Double>> knn_p = DistanceMeasureService.getKNearestNeighbors(batch, p, k, distanceMeasure);
+        List<TupleTwo<DataRow, Double>> knn_p = DistanceMeasureService.getKNearestNeighbors(batch, p, k, measure);
         double density = local_reachability_density(batch, p, k, knn_p);
         return density;
     }
@@ -280,7 +239,7 @@ public class LOF {
     // the higher this value, the more likely the point is an outlier
     public double local_outlier_factor(DataFrame batch, DataRow p, int k){
 
-        List<TupleTwo<DataRow, Double>> knn_p = DistanceMeasureService.getKNearestNeighbors(batch, p, k, distanceMeasure);
+        List<TupleTwo<DataRow, Double>> knn_p = DistanceMeasureService.getKNearestNeighbors(batch, p, k, measure);
         double lrd_p = local_reachability_density(batch, p, k, knn_p);
         double sum_lrd = 0;
         for(TupleTwo<DataRow,Double> o : knn_p){
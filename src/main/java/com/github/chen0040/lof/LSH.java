@@ -0,0 +1,54 @@
+package com.github.chen0040.lof;
+
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+
+/**
+ * LSH candidate generation for LOF and LDOF with a custom distance measure: builds an LSHIndex per fit with a hash
+ * family that matches the measure, so that each kNN query evaluates the measure on its candidates rather than on every
+ * row. bucketWidth only applies to EUCLIDEAN, and is estimated from the data when not positive.
+ *
+ * As with HNSW, a positive recallSampleSize measures the recall@recallK of every build against a linear scan, kept in
+ * measuredRecall.
+ */
+@Getter
+@Setter
+public class LSH implements NeighborIndexFactory {
+
+    private LSHFamily family = LSHFamily.EUCLIDEAN;
+    private int tables = 10;
+    private int hashesPerTable = 6;
+    private double bucketWidth = 0;
+    private long seed = 42L;
+
+    private int recallSampleSize = 0;
+    private int recallK = 10;
+
+    @Setter(AccessLevel.NONE)
+    private double measuredRecall = Double.NaN;
+
+    public LSH(){
+    }
+
+    public LSH(LSHFamily family){
+        this.family = family;
+    }
+
+    public LSH(LSHFamily family, int tables, int hashesPerTable){
+        this.family = family;
+        this.tables = tables;
+        this.hashesPerTable = hashesPerTable;
+    }
+
+    @Override
+    public NeighborIndex build(DataMatrix matrix, DistanceMeasure distanceMeasure) {
+        LSHIndex index = new LSHIndex(matrix, distanceMeasure, family, tables, hashesPerTable, bucketWidth, seed);
+        if(recallSampleSize > 0){
+            measuredRecall = NeighborIndex.recall(index, new BruteForceIndex(matrix, distanceMeasure), recallK, recallSampleSize, seed);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.chen0040.lof;
+
+
+/**
+ * Locality-sensitive hash families for LSH candidate generation, one per family of distance measures. Each hashes the
+ * numeric input columns of a row; the distance measure itself is only evaluated on the candidates.
+ *
+ * COSINE: sign random projections (Charikar), one bit per random hyperplane; two rows collide on a bit with probability
+ * 1 - angle / pi. For cosine and angular distances.
+ *
+ * EUCLIDEAN: p-stable projections (Datar et al.), floor((a.x + b) / w) with a gaussian and b uniform in [0, w); the
+ * collision probability falls with the euclidean distance relative to the bucket width w. For euclidean, and roughly
+ * for other Minkowski distances.
+ *
+ * JACCARD: MinHash over the set of columns in which a row is non-zero; two rows collide on a hash with probability
+ * equal to the Jaccard similarity of their sets. For binary or indicator data.
+ */
+public enum LSHFamily {
+    COSINE,
+    EUCLIDEAN,
+    JACCARD
+}
@@ -0,0 +1,313 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Locality-sensitive hashing over the rows of a batch, to generate kNN candidates for a distance measure that no tree
+ * can index. The rows are hashed into tables, each keyed by hashesPerTable hashes of the given family concatenated; a
+ * kNN query evaluates the distance measure only on the rows that share a bucket with it in at least one table, the
+ * union of which is usually a small fraction of the batch. More tables raise the recall, more hashes per table shrink
+ * the buckets.
+ *
+ * Each table is stored as its row numbers sorted by bucket key next to the sorted keys, so a bucket is found by binary
+ * search and the index holds no boxed keys or per-bucket lists. When the buckets of a query hold fewer than k rows, the
+ * remaining rows are scanned, so a query always returns k neighbors. Range queries are answered exactly by a linear
+ * scan.
+ */
+public class LSHIndex implements NeighborIndex {
+
+    private final DataMatrix matrix;
+    private final DistanceMeasure distanceMeasure;
+    private final LSHFamily family;
+    private final int tables;
+    private final int hashesPerTable;
+    private final double bucketWidth;
+
+    // COSINE and EUCLIDEAN: one projection of the matrix dimension per hash, EUCLIDEAN also one offset per hash
+    private double[] projections;
+    private double[] offsets;
+    // JACCARD: the seed of one hash of the column number per hash
+    private long[] seeds;
+
+    // per table, the bucket keys in ascending order and the row of each
+    private final long[][] keys;
+    private final int[][] rows;
+
+    private final ThreadLocal<Visited> visited;
+
+    /**
+     * bucketWidth is used by EUCLIDEAN only; when it is not positive it is estimated from the data, as four times the
+     * average distance from a sample of rows to their nearest neighbor.
+     */
+    public LSHIndex(DataMatrix matrix, DistanceMeasure distanceMeasure, LSHFamily family,
+                    int tables, int hashesPerTable, double bucketWidth, long seed){
+        if(tables < 1 || hashesPerTable < 1) throw new IllegalArgumentException("tables and hashesPerTable must be positive");
+        this.matrix = matrix;
+        this.distanceMeasure = distanceMeasure;
+        this.family = family;
+        this.tables = tables;
+        this.hashesPerTable = hashesPerTable;
+
+        int size = matrix.rowCount();
+        int dimension = matrix.dimension();
+        int hashes = tables * hashesPerTable;
+        Random random = new Random(seed);
+
+        this.bucketWidth = family == LSHFamily.EUCLIDEAN && bucketWidth <= 0 ? estimateBucketWidth(random) : bucketWidth;
+
+        if(family == LSHFamily.JACCARD){
+            seeds = new long[hashes];
+            for(int h=0; h < hashes; ++h){
+                seeds[h] = random.nextLong();
+            }
+        } else {
+            projections = new double[hashes * dimension];
+            for(int j=0; j < projections.length; ++j){
+                projections[j] = random.nextGaussian();
+            }
+            if(family == LSHFamily.EUCLIDEAN){
+                offsets = new double[hashes];
+                for(int h=0; h < hashes; ++h){
+                    offsets[h] = random.nextDouble() * this.bucketWidth;
+                }
+            }
+        }
+
+        keys = new long[tables][size];
+        rows = new int[tables][];
+        for(int t=0; t < tables; ++t){
+            long[] tableKeys = keys[t];
+            for(int i=0; i < size; ++i){
+                tableKeys[i] = key(t, matrix.data(), matrix.offset(i), dimension);
+            }
+            rows[t] = sortByKey(tableKeys);
+        }
+
+        visited = ThreadLocal.withInitial(() -> new Visited(size));
+    }
+
+    public LSHFamily getFamily(){
+        return family;
+    }
+
+    public int getTables(){
+        return tables;
+    }
+
+    public int getHashesPerTable(){
+        return hashesPerTable;
+    }
+
+    public double getBucketWidth(){
+        return bucketWidth;
+    }
+
+    @Override
+    public DataMatrix matrix() {
+        return matrix;
+    }
+
+    private double estimateBucketWidth(Random random){
+        int size = matrix.rowCount();
+        if(size < 2) return 1;
+        int sample = Math.min(size, 32);
+        double total = 0;
+        for(int s=0; s < sample; ++s){
+            int row = random.nextInt(size);
+            double nearest = Double.MAX_VALUE;
+            for(int i=0; i < size; ++i){
+                if(i == row) continue;
+                nearest = Math.min(nearest, DistanceKernels.squaredEuclidean(matrix.data(), matrix.offset(i),
+                        matrix.data(), matrix.offset(row), matrix.dimension()));
+            }
+            total += Math.sqrt(nearest);
+        }
+        double width = 4 * total / sample;
+        return width > 0 ? width : 1;
+    }
+
+    // bucket key of the vector at x[offset, offset + dimension) in table t: its hashes mixed into one long
+    private long key(int t, double[] x, int offset, int dimension){
+        long key = 0xcbf29ce484222325L;
+        int first = t * hashesPerTable;
+        for(int h = first; h < first + hashesPerTable; ++h){
+            key = (key ^ hash(h, x, offset, dimension)) * 0x100000001b3L;
+        }
+        return key;
+    }
+
+    private long hash(int h, double[] x, int offset, int dimension){
+        switch (family){
+            case COSINE:
+                return dot(h, x, offset, dimension) >= 0 ? 1 : 0;
+            case EUCLIDEAN:
+                return (long) Math.floor((dot(h, x, offset, dimension) + offsets[h]) / bucketWidth);
+            default:
+                long min = Long.MAX_VALUE;
+                for(int d=0; d < dimension; ++d){
+                    if(x[offset + d] != 0){
+                        min = Math.min(min, mix(seeds[h] + d * 0x9E3779B97F4A7C15L));
+                    }
+                }
+                return min;
+        }
+    }
+
+    private double dot(int h, double[] x, int offset, int dimension){
+        int base = h * matrix.dimension();
+        double sum = 0;
+        for(int d=0; d < dimension; ++d){
+            sum += projections[base + d] * x[offset + d];
+        }
+        return sum;
+    }
+
+    // the splitmix64 finalizer, a bijection that scatters consecutive column numbers over the longs
+    private static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // sorts the keys in place and returns the row each sorted key belongs to; the rows of a bucket stay in row order
+    static int[] sortByKey(long[] keys){
+        int size = keys.length;
+        int[] rows = new int[size];
+        for(int i=0; i < size; ++i){
+            rows[i] = i;
+        }
+        sort(keys, rows, 0, size - 1);
+        return rows;
+    }
+
+    // quicksort of the parallel key and row arrays by (key, row), with insertion sort for short ranges
+    private static void sort(long[] keys, int[] rows, int lo, int hi){
+        while(lo < hi){
+            if(hi - lo < 16){
+                for(int i = lo + 1; i <= hi; ++i){
+                    for(int j = i; j > lo && less(keys, rows, j, j - 1); --j){
+                        swap(keys, rows, j, j - 1);
+                    }
+                }
+                return;
+            }
+            int middle = (lo + hi) >>> 1;
+            long pivotKey = keys[middle];
+            int pivotRow = rows[middle];
+            int i = lo, j = hi;
+            while(i <= j){
+                while(keys[i] < pivotKey || (keys[i] == pivotKey && rows[i] < pivotRow)) i++;
+                while(keys[j] > pivotKey || (keys[j] == pivotKey && rows[j] > pivotRow)) j--;
+                if(i <= j){
+                    swap(keys, rows, i++, j--);
+                }
+            }
+            if(j - lo < hi - i){
+                sort(keys, rows, lo, j);
+                lo = i;
+            } else {
+                sort(keys, rows, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static boolean less(long[] keys, int[] rows, int i, int j){
+        return keys[i] < keys[j] || (keys[i] == keys[j] && rows[i] < rows[j]);
+    }
+
+    private static void swap(long[] keys, int[] rows, int i, int j){
+        long tk = keys[i]; keys[i] = keys[j]; keys[j] = tk;
+        int tr = rows[i]; rows[i] = rows[j]; rows[j] = tr;
+    }
+
+    // index of the first key not less than the given one
+    private static int lowerBound(long[] keys, long key){
+        int lo = 0, hi = keys.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public void knn(DataMatrix query, int row, BoundedMaxHeap heap) {
+        DataRow self = query.row(row);
+        Visited visits = visited.get();
+        int[] marks = visits.marks;
+        int stamp = visits.next();
+
+        double[] x = query.data();
+        int offset = query.offset(row);
+        int dimension = Math.min(query.dimension(), matrix.dimension());
+        int candidates = 0;
+        for(int t=0; t < tables; ++t){
+            long key = key(t, x, offset, dimension);
+            long[] tableKeys = keys[t];
+            int[] tableRows = rows[t];
+            for(int j = lowerBound(tableKeys, key); j < tableKeys.length && tableKeys[j] == key; ++j){
+                int i = tableRows[j];
+                if(marks[i] == stamp) continue;
+                marks[i] = stamp;
+                if(matrix.row(i) == self) continue;
+                heap.offer(i, DistanceMeasureService.getSurrogateDistance(matrix, i, query, row, distanceMeasure));
+                candidates++;
+            }
+        }
+
+        if(candidates < heap.capacity()){
+            int N = matrix.rowCount();
+            for(int i=0; i < N; ++i){
+                if(marks[i] == stamp || matrix.row(i) == self) continue;
+                heap.offer(i, DistanceMeasureService.getSurrogateDistance(matrix, i, query, row, distanceMeasure));
+            }
+        }
+
+        if(distanceMeasure == null){
+            heap.sqrtDistances();
+        } else {
+            heap.sort();
+        }
+    }
+
+    @Override
+    public Neighbors range(DataMatrix query, int row, double radius) {
+        DataRow self = query.row(row);
+        RangeCollector collector = new RangeCollector();
+        int N = matrix.rowCount();
+        double bound = DistanceMeasureService.toSurrogate(radius, distanceMeasure);
+        for(int i=0; i < N; ++i){
+            if(matrix.row(i) == self) continue;
+            double surrogate = DistanceMeasureService.getSurrogateDistance(matrix, i, query, row, distanceMeasure);
+            if(surrogate < bound){
+                collector.add(i, DistanceMeasureService.toDistance(surrogate, distanceMeasure));
+            }
+        }
+        return collector.toNeighbors();
+    }
+
+    // per-thread marks of the rows already evaluated for a query, a stamp per row so that clearing is free
+    private static class Visited {
+        private final int[] marks;
+        private int stamp = 0;
+
+        Visited(int size){
+            marks = new int[size];
+        }
+
+        int next(){
+            if(++stamp == 0){
+                Arrays.fill(marks, 0);
+                stamp = 1;
+            }
+            return stamp;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * Neighbor search over the rows of a batch, built once per fit and then queried for k-nearest neighbors and for
+ * radius neighborhoods. A query row is given as a row of a DataMatrix, which is either the indexed matrix itself
+ * (in-sample queries) or a matrix wrapping new data. An indexed row is never returned as a neighbor of itself.
+ */
+public interface NeighborIndex {
+
+    DataMatrix matrix();
+
+    // collects the rows nearest to the query into the heap, up to its capacity, and leaves the heap sorted
+    void knn(DataMatrix query, int row, BoundedMaxHeap heap);
+
+    // all rows whose distance to the query is less than radius, sorted ascending by distance
+    Neighbors range(DataMatrix query, int row, double radius);
+
+    default int size(){
+        return matrix().rowCount();
+    }
+
+    default DataRow row(int index){
+        return matrix().row(index);
+    }
+
+    // the k rows nearest to the query, sorted ascending by distance
+    default Neighbors knn(DataMatrix query, int row, int k){
+        BoundedMaxHeap heap = BoundedMaxHeap.forThread(k);
+        knn(query, row, heap);
+        return heap.toNeighbors();
+    }
+
+    default void knn(DataRow query, BoundedMaxHeap heap){
+        knn(DataMatrix.of(query), 0, heap);
+    }
+
+    default Neighbors knn(DataRow query, int k){
+        return knn(DataMatrix.of(query), 0, k);
+    }
+
+    default Neighbors knn(int index, int k){
+        return knn(matrix(), index, k);
+    }
+
+    default Neighbors range(DataRow query, double radius){
+        return range(DataMatrix.of(query), 0, radius);
+    }
+
+    default Neighbors range(int index, double radius){
+        return range(matrix(), index, radius);
+    }
+
+    /**
+     * Recall of an approximate index: the share of the exact k nearest neighbors of sampleSize rows, drawn at random
+     * from the indexed batch, that it returns.
+     */
+    static double recall(NeighborIndex approximate, NeighborIndex exact, int k, int sampleSize, long seed){
+        int size = exact.size();
+        if(size < 2) return 1;
+        Random random = new Random(seed);
+        long found = 0, expected = 0;
+        for(int s=0; s < sampleSize; ++s){
+            int row = random.nextInt(size);
+            Neighbors truth = exact.knn(row, k);
+            Neighbors result = approximate.knn(row, k);
+            Set<Integer> returned = new HashSet<>();
+            for(int j=0; j < result.size(); ++j){
+                returned.add(result.index(j));
+            }
+            for(int j=0; j < truth.size(); ++j){
+                if(returned.contains(truth.index(j))) found++;
+            }
+            expected += truth.size();
+        }
+        return expected == 0 ? 1 : (double) found / expected;
+    }
+}
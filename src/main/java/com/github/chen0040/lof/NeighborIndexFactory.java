@@ -0,0 +1,10 @@
+package com.github.chen0040.lof;
+
+
+/**
+ * Builds the neighbor index a detector queries during fitAndTransform.
+ */
+@FunctionalInterface
+public interface NeighborIndexFactory {
+    NeighborIndex build(DataMatrix matrix, DistanceMeasure distanceMeasure);
+}
@@ -0,0 +1,38 @@
+package com.github.chen0040.lof;
+
+
+/**
+ * The built-in neighbor search strategies.
+ *
+ * AUTO uses a KD-tree for the default euclidean distance on data with at most KD_TREE_MAX_DIMENSION columns and
+ * falls back to a linear scan otherwise. A custom distance measure is only put into a VP-tree when VP_TREE is
+ * selected explicitly, since the tree's pruning is only correct for true metrics (triangle inequality).
+ */
+public enum NeighborSearch implements NeighborIndexFactory {
+    AUTO,
+    BRUTE_FORCE,
+    KD_TREE,
+    VP_TREE;
+
+    public static final int KD_TREE_MAX_DIMENSION = 20;
+
+    @Override
+    public NeighborIndex build(DataMatrix matrix, DistanceMeasure distanceMeasure) {
+        switch (this){
+            case BRUTE_FORCE:
+                return new BruteForceIndex(matrix, distanceMeasure);
+            case KD_TREE:
+                if(distanceMeasure != null){
+                    throw new IllegalArgumentException("KD-tree only supports the default euclidean distance");
+                }
+                return new KDTree(matrix);
+            case VP_TREE:
+                return new VPTree(matrix, distanceMeasure);
+            default:
+                if(distanceMeasure == null && matrix.dimension() <= KD_TREE_MAX_DIMENSION){
+                    return new KDTree(matrix);
+                }
+                return new BruteForceIndex(matrix, distanceMeasure);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Per-fit cache of the k-nearest neighborhoods of every row in a batch, keyed by row index.
+ *
+ * The neighbors of each row are searched once at the largest minPts; the neighborhood for any smaller k is the
+ * prefix of that ranked list. The k-distance and the local reachability density (lrd) of every row are derived
+ * from those prefixes for every k in [minPtsLB, minPtsUB], so scoring a row never has to search the batch again.
+ *
+ * The lrds and LOFs of a row for all k are computed in one sweep over its ranked neighbors: the neighbor of rank j
+ * belongs to the neighborhood of every k > j, so its reach-distances and lrds are added to the running sums of all those
+ * k at once, read from its own contiguous k-distances and lrds. Each neighbor is visited once per row rather than once
+ * per k, and the cost of widening the range is in the inner loops over k, which run over contiguous memory.
+ */
+public class NeighborhoodCache {
+
+    private final NeighborIndex index;
+    private final int minPtsLB;
+    private final int minPtsUB;
+    private final int kCount;
+
+    // neighbors[i] holds the row indices of the nearest neighbors of row i, sorted ascending by distance
+    private final int[][] neighbors;
+    private final double[][] distances;
+
+    // lrd[i * kCount + k - minPtsLB] is the local reachability density of row i for minPts = k
+    private final double[] lrd;
+
+    // running sums of a sweep, one per k, which the LOF sweep turns into its output in place
+    private final ThreadLocal<double[]> sums;
+    // lrds of a query row for every k, reused across the rows a thread scores
+    private final ThreadLocal<double[]> queryLrd;
+
+    public NeighborhoodCache(NeighborIndex index, int minPtsLB, int minPtsUB){
+        this(index, minPtsLB, minPtsUB, null);
+    }
+
+    // builds the cache with the row searches and lrds split over the executor; a null executor builds it sequentially
+    public NeighborhoodCache(NeighborIndex index, int minPtsLB, int minPtsUB, ExecutorService executor){
+        this.index = index;
+        this.minPtsLB = minPtsLB;
+        this.minPtsUB = minPtsUB;
+        this.kCount = minPtsUB - minPtsLB + 1;
+
+        int m = index.size();
+        neighbors = new int[m][];
+        distances = new double[m][];
+        sums = ThreadLocal.withInitial(() -> new double[kCount]);
+        queryLrd = ThreadLocal.withInitial(() -> new double[kCount]);
+
+        ParallelRows.forEach(executor, m, (from, to) -> {
+            for(int i = from; i < to; ++i){
+                Neighbors knn = index.knn(i, minPtsUB);
+                neighbors[i] = knn.indices();
+                distances[i] = knn.distances();
+            }
+        });
+
+        lrd = new double[m * kCount];
+        ParallelRows.forEach(executor, m, (from, to) -> {
+            for(int i = from; i < to; ++i){
+                local_reachability_densities(neighbors[i], distances[i], neighbors[i].length, lrd, i * kCount);
+            }
+        });
+    }
+
+    public NeighborIndex getIndex(){
+        return index;
+    }
+
+    public int rowCount(){
+        return neighbors.length;
+    }
+
+    public int getMinPtsLB() {
+        return minPtsLB;
+    }
+
+    public int getMinPtsUB() {
+        return minPtsUB;
+    }
+
+    // distance from row o to its k-th nearest neighbor
+    public double k_distance(int o, int k){
+        double[] distance = distances[o];
+        return distance[Math.min(k, distance.length) - 1];
+    }
+
+    public double local_reachability_density(int p, int k){
+        return lrd[p * kCount + k - minPtsLB];
+    }
+
+    // the higher this value, the more likely the row is an outlier
+    public double local_outlier_factor(int p, int k){
+        double[] lof = new double[kCount];
+        local_outlier_factors(neighbors[p], neighbors[p].length, lrd, p * kCount, lof);
+        return lof[k - minPtsLB];
+    }
+
+    /**
+     * Scores a row of the batch as the max LOF over all minPts in [minPtsLB, minPtsUB].
+     */
+    public double score(int p){
+        double[] lof = sums.get();
+        local_outlier_factors(neighbors[p], neighbors[p].length, lrd, p * kCount, lof);
+        return max(lof);
+    }
+
+    /**
+     * Scores a tuple that is not part of the batch: its neighborhood is searched once at minPtsUB through the index, while the
+     * k-distances and lrds of its neighbors are taken from the cache.
+     */
+    public double score(DataRow tuple){
+        return score(DataMatrix.of(tuple), 0);
+    }
+
+    // scores a row of a query matrix that is not part of the batch, in the same way as score(DataRow)
+    public double score(DataMatrix query, int row){
+        BoundedMaxHeap knn = BoundedMaxHeap.forThread(minPtsUB);
+        index.knn(query, row, knn);
+
+        double[] lof = sums.get();
+        double[] lrd_p = queryLrd.get();
+        local_reachability_densities(knn.indices(), knn.distances(), knn.size(), lrd_p, 0);
+        local_outlier_factors(knn.indices(), knn.size(), lrd_p, 0, lof);
+        return max(lof);
+    }
+
+    private double max(double[] lof){
+        double maxLOF = Double.NEGATIVE_INFINITY;
+        for(double value : lof){
+            if(Double.isNaN(value)) continue;
+            maxLOF = Math.max(maxLOF, value);
+        }
+        return maxLOF;
+    }
+
+    // writes the lrd of a row for every k into out[offset, offset + kCount), given its ranked neighbors
+    private void local_reachability_densities(int[] knn_p, double[] distance_p, int size, double[] out, int offset){
+        double[] sum_reach_dist = sums.get();
+        Arrays.fill(sum_reach_dist, 0);
+        for(int j=0; j < size; ++j){
+            double[] distance_o = distances[knn_p[j]];
+            double d = distance_p[j];
+            int last = distance_o.length - 1;
+            // the neighbor of rank j is in the neighborhoods of k = j + 1 and up
+            for(int k = Math.max(minPtsLB, j + 1); k <= minPtsUB; ++k){
+                sum_reach_dist[k - minPtsLB] += Math.max(distance_o[Math.min(k - 1, last)], d);
+            }
+        }
+        for(int k = minPtsLB; k <= minPtsUB; ++k){
+            int n = Math.min(k, size);
+            out[offset + k - minPtsLB] = 1 / (sum_reach_dist[k - minPtsLB] / n);
+        }
+    }
+
+    // writes the LOF of a row for every k into lof, given its ranked neighbors and its lrds at lrd_p[offset, offset + kCount)
+    private void local_outlier_factors(int[] knn_p, int size, double[] lrd_p, int offset, double[] lof){
+        double[] sum_lrd = lof;
+        Arrays.fill(sum_lrd, 0);
+        for(int j=0; j < size; ++j){
+            int base = knn_p[j] * kCount;
+            for(int k = Math.max(minPtsLB, j + 1); k <= minPtsUB; ++k){
+                sum_lrd[k - minPtsLB] += lrd[base + k - minPtsLB];
+            }
+        }
+        for(int k = minPtsLB; k <= minPtsUB; ++k){
+            int n = Math.min(k, size);
+            double lrd_k = lrd_p[offset + k - minPtsLB];
+            double sum = sum_lrd[k - minPtsLB];
+            if(Double.isInfinite(sum) && Double.isInfinite(lrd_k)){
+                lof[k - minPtsLB] = 1.0 / n;
+            } else {
+                lof[k - minPtsLB] = (sum / lrd_k) / n;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.chen0040.lof;
+
+
+/**
+ * Result of a neighbor search: row indices of the indexed batch together with their distances to the query,
+ * sorted ascending by distance.
+ */
+public class Neighbors {
+    private final int[] index;
+    private final double[] distance;
+
+    public Neighbors(int[] index, double[] distance){
+        this.index = index;
+        this.distance = distance;
+    }
+
+    public int size(){
+        return index.length;
+    }
+
+    public int index(int j){
+        return index[j];
+    }
+
+    public double distance(int j){
+        return distance[j];
+    }
+
+    public int[] indices(){
+        return index;
+    }
+
+    public double[] distances(){
+        return distance;
+    }
+}
@@ -0,0 +1,463 @@
+package com.github.chen0040.lof;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Symmetric pairwise distance matrix of a batch that stores only the m(m-1)/2 entries above the diagonal, packed row
+ * by row, in double, float or half precision. Entries are addressed by a long index and kept in chunks of at most
+ * 2^CHUNK_BITS values, so the matrix is not bound by the maximum array length. When the packed entries exceed the
+ * memory budget, the chunks are memory-mapped from a temporary file instead of allocated on the heap, and the
+ * operating system pages them in and out as LOCI walks the rows.
+ */
+public abstract class PackedDistanceMatrix implements Closeable {
+
+    public enum Precision {
+        DOUBLE(8),
+        FLOAT(4),
+        // IEEE 754 binary16: an 11-bit significand, about three decimal digits, and no distance above HALF_MAX
+        HALF(2);
+
+        private final int bytes;
+
+        Precision(int bytes){
+            this.bytes = bytes;
+        }
+
+        public int bytes(){
+            return bytes;
+        }
+
+        // the distance as it reads back once stored in this precision
+        public double round(double distance){
+            switch(this){
+                case FLOAT:
+                    return (float) distance;
+                case HALF:
+                    return toFloat(toHalf(distance));
+                default:
+                    return distance;
+            }
+        }
+    }
+
+    // largest finite half-precision value; a larger distance would be stored as infinity
+    public static final double HALF_MAX = 65504;
+
+    private static final int CHUNK_BITS = 27;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // rows per side of the square tiles the matrix is computed in; a tile of both row blocks stays in cache
+    static final int TILE_SIZE = 64;
+
+    private final int size;
+    private final long entries;
+    private double maxDistance = 0;
+
+    protected PackedDistanceMatrix(int size, long entries){
+        this.size = size;
+        this.entries = entries;
+    }
+
+    /**
+     * Allocates a matrix for size rows, on the heap if its entries fit within memoryBudget bytes and memory-mapped
+     * from a temporary file otherwise.
+     */
+    public static PackedDistanceMatrix allocate(int size, Precision precision, long memoryBudget){
+        return allocate(size, entryCount(size), precision, memoryBudget);
+    }
+
+    // storage for an arbitrary number of long-indexed entries, addressed through read() and write()
+    static PackedDistanceMatrix allocate(int size, long entries, Precision precision, long memoryBudget){
+        if(entries * precision.bytes() <= memoryBudget){
+            switch(precision){
+                case FLOAT:
+                    return new HeapFloat(size, entries);
+                case HALF:
+                    return new HeapHalf(size, entries);
+                default:
+                    return new HeapDouble(size, entries);
+            }
+        }
+        return new Mapped(size, entries, precision);
+    }
+
+    /**
+     * Computes the distances between all rows of a matrix into a new packed matrix. The upper triangle is cut into
+     * TILE_SIZE x TILE_SIZE tiles that are computed in parallel on the executor (sequentially if it is null); with the
+     * default euclidean distance each row of a tile is compared against the whole column block by the batched kernel.
+     * Throws an IllegalArgumentException in half precision when a distance exceeds HALF_MAX.
+     */
+    public static PackedDistanceMatrix compute(DataMatrix matrix, DistanceMeasure distanceMeasure,
+                                               Precision precision, long memoryBudget, ExecutorService executor){
+        int m = matrix.rowCount();
+        PackedDistanceMatrix distances = allocate(m, precision, memoryBudget);
+
+        int blocks = (m + TILE_SIZE - 1) / TILE_SIZE;
+        int tiles = blocks * (blocks + 1) / 2;
+        double[] tileMax = new double[tiles];
+
+        ParallelRows.forEach(executor, tiles, 4, (from, to) -> {
+            double[] buffer = new double[TILE_SIZE];
+            int bi = 0, bj = 0, t = 0;
+            // walk to the first tile of the range; tiles are numbered row block by row block over bj >= bi
+            while(t + (blocks - bi) <= from){
+                t += blocks - bi;
+                bi++;
+            }
+            bj = bi + (from - t);
+
+            for(int tile = from; tile < to; ++tile){
+                tileMax[tile] = distances.computeTile(matrix, distanceMeasure, bi, bj, buffer);
+                if(++bj == blocks){
+                    bi++;
+                    bj = bi;
+                }
+            }
+        });
+
+        double maxDistance = 0;
+        for(double value : tileMax){
+            maxDistance = Math.max(maxDistance, value);
+        }
+        distances.maxDistance = maxDistance;
+
+        if(precision == Precision.HALF && maxDistance > HALF_MAX){
+            distances.close();
+            throw new IllegalArgumentException("distances up to " + maxDistance + " exceed the half precision range of "
+                    + HALF_MAX + "; scale the data or use FLOAT precision");
+        }
+        return distances;
+    }
+
+    private double computeTile(DataMatrix matrix, DistanceMeasure distanceMeasure, int bi, int bj, double[] buffer){
+        int m = matrix.rowCount();
+        int iFrom = bi * TILE_SIZE, iTo = Math.min(m, iFrom + TILE_SIZE);
+        int jBlockFrom = bj * TILE_SIZE, jTo = Math.min(m, jBlockFrom + TILE_SIZE);
+        double max = 0;
+
+        for(int i = iFrom; i < iTo; ++i){
+            int jFrom = bi == bj ? i + 1 : jBlockFrom;
+            if(jFrom >= jTo) continue;
+            long base = index(size, i, jFrom);
+
+            if(distanceMeasure == null){
+                DistanceKernels.squaredEuclidean(matrix.data(), matrix.offset(i), matrix.data(), jFrom, jTo, matrix.dimension(), buffer);
+                for(int j = jFrom; j < jTo; ++j){
+                    double distance = Math.sqrt(buffer[j - jFrom]);
+                    write(base + j - jFrom, distance);
+                    max = Math.max(max, distance);
+                }
+            } else {
+                for(int j = jFrom; j < jTo; ++j){
+                    double distance = DistanceMeasureService.getDistance(matrix, i, matrix, j, distanceMeasure);
+                    write(base + j - jFrom, distance);
+                    max = Math.max(max, distance);
+                }
+            }
+        }
+        return max;
+    }
+
+    public static long entryCount(int size){
+        return (long) size * (size - 1) / 2;
+    }
+
+    // position of the pair (i, j), i < j, in the packed upper triangle
+    static long index(int size, int i, int j){
+        return (long) i * size - (long) i * (i + 1) / 2 + (j - i - 1);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    // largest distance between two rows, as computed before it was stored
+    public double maxDistance(){
+        return maxDistance;
+    }
+
+    public double get(int i, int j){
+        if(i == j) return 0;
+        if(i > j){
+            int temp = i; i = j; j = temp;
+        }
+        return read(index(size, i, j));
+    }
+
+    public void set(int i, int j, double distance){
+        if(i == j) return;
+        if(i > j){
+            int temp = i; i = j; j = temp;
+        }
+        write(index(size, i, j), distance);
+        maxDistance = Math.max(maxDistance, distance);
+    }
+
+    public abstract Precision precision();
+
+    // whether the entries live in a memory-mapped file rather than on the heap
+    public abstract boolean isMapped();
+
+    // bytes the entries take on the heap, 0 when they are memory-mapped
+    public long heapBytes(){
+        return isMapped() ? 0 : entries * precision().bytes();
+    }
+
+    protected abstract double read(long index);
+
+    protected abstract void write(long index, double distance);
+
+    @Override
+    public void close() {
+    }
+
+    // Converts to IEEE 754 binary16, rounding to the nearest value and to even on ties; a value beyond HALF_MAX
+    // becomes infinity and one below the smallest subnormal becomes zero.
+    static short toHalf(double value){
+        int bits = Float.floatToRawIntBits((float) value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if(exponent == 0xff){
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        exponent -= 127 - 15;
+        if(exponent >= 0x1f){
+            return (short) (sign | 0x7c00);
+        }
+
+        int half, rest, midpoint;
+        if(exponent <= 0){
+            if(exponent < -10){
+                return (short) sign;
+            }
+            // subnormal: the implicit leading bit becomes explicit and the significand shifts right past it
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            half = mantissa >>> shift;
+            rest = mantissa & ((1 << shift) - 1);
+            midpoint = 1 << (shift - 1);
+        } else {
+            half = (exponent << 10) | (mantissa >>> 13);
+            rest = mantissa & 0x1fff;
+            midpoint = 0x1000;
+        }
+        // a carry out of the significand moves to the next exponent, up to infinity, as the format intends
+        if(rest > midpoint || (rest == midpoint && (half & 1) != 0)){
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    static float toFloat(short half){
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+
+        if(exponent == 0x1f){
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if(exponent == 0){
+            float subnormal = mantissa * 0x1p-24f;
+            return sign != 0 ? -subnormal : subnormal;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 127 - 15) << 23) | (mantissa << 13));
+    }
+
+    private static int chunkCount(long entries){
+        return (int) ((entries + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+    }
+
+    private static int chunkLength(long entries, int chunk){
+        return (int) Math.min(CHUNK_SIZE, entries - ((long) chunk << CHUNK_BITS));
+    }
+
+    private static class HeapDouble extends PackedDistanceMatrix {
+        private final double[][] chunks;
+
+        HeapDouble(int size, long entries){
+            super(size, entries);
+            chunks = new double[chunkCount(entries)][];
+            for(int c = 0; c < chunks.length; ++c){
+                chunks[c] = new double[chunkLength(entries, c)];
+            }
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.DOUBLE;
+        }
+
+        @Override
+        public boolean isMapped() {
+            return false;
+        }
+
+        @Override
+        protected double read(long index) {
+            return chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)];
+        }
+
+        @Override
+        protected void write(long index, double distance) {
+            chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)] = distance;
+        }
+    }
+
+    private static class HeapFloat extends PackedDistanceMatrix {
+        private final float[][] chunks;
+
+        HeapFloat(int size, long entries){
+            super(size, entries);
+            chunks = new float[chunkCount(entries)][];
+            for(int c = 0; c < chunks.length; ++c){
+                chunks[c] = new float[chunkLength(entries, c)];
+            }
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.FLOAT;
+        }
+
+        @Override
+        public boolean isMapped() {
+            return false;
+        }
+
+        @Override
+        protected double read(long index) {
+            return chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)];
+        }
+
+        @Override
+        protected void write(long index, double distance) {
+            chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)] = (float) distance;
+        }
+    }
+
+    private static class HeapHalf extends PackedDistanceMatrix {
+        private final short[][] chunks;
+
+        HeapHalf(int size, long entries){
+            super(size, entries);
+            chunks = new short[chunkCount(entries)][];
+            for(int c = 0; c < chunks.length; ++c){
+                chunks[c] = new short[chunkLength(entries, c)];
+            }
+        }
+
+        @Override
+        public Precision precision() {
+            return Precision.HALF;
+        }
+
+        @Override
+        public boolean isMapped() {
+            return false;
+        }
+
+        @Override
+        protected double read(long index) {
+            return toFloat(chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)]);
+        }
+
+        @Override
+        protected void write(long index, double distance) {
+            chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)] = toHalf(distance);
+        }
+    }
+
+    private static class Mapped extends PackedDistanceMatrix {
+        private final Precision precision;
+        private final File file;
+        private DoubleBuffer[] doubles;
+        private FloatBuffer[] floats;
+        private ShortBuffer[] halves;
+
+        Mapped(int size, long entries, Precision precision){
+            super(size, entries);
+            this.precision = precision;
+
+            int chunkCount = chunkCount(entries);
+            if(precision == Precision.DOUBLE) doubles = new DoubleBuffer[chunkCount];
+            else if(precision == Precision.FLOAT) floats = new FloatBuffer[chunkCount];
+            else halves = new ShortBuffer[chunkCount];
+
+            try {
+                file = File.createTempFile("loci-distances", ".bin");
+                file.deleteOnExit();
+                try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(entries * precision.bytes());
+                    FileChannel channel = raf.getChannel();
+                    for(int c = 0; c < chunkCount; ++c){
+                        long position = ((long) c << CHUNK_BITS) * precision.bytes();
+                        long length = (long) chunkLength(entries, c) * precision.bytes();
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+                        buffer.order(ByteOrder.nativeOrder());
+                        if(precision == Precision.DOUBLE) doubles[c] = buffer.asDoubleBuffer();
+                        else if(precision == Precision.FLOAT) floats[c] = buffer.asFloatBuffer();
+                        else halves[c] = buffer.asShortBuffer();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to map the distance matrix to a temporary file", e);
+            }
+        }
+
+        @Override
+        public Precision precision() {
+            return precision;
+        }
+
+        @Override
+        public boolean isMapped() {
+            return true;
+        }
+
+        @Override
+        protected double read(long index) {
+            int chunk = (int) (index >>> CHUNK_BITS);
+            int offset = (int) (index & CHUNK_MASK);
+            if(doubles != null) return doubles[chunk].get(offset);
+            if(floats != null) return floats[chunk].get(offset);
+            return toFloat(halves[chunk].get(offset));
+        }
+
+        @Override
+        protected void write(long index, double distance) {
+            int chunk = (int) (index >>> CHUNK_BITS);
+            int offset = (int) (index & CHUNK_MASK);
+            if(doubles != null) doubles[chunk].put(offset, distance);
+            else if(floats != null) floats[chunk].put(offset, (float) distance);
+            else halves[chunk].put(offset, toHalf(distance));
+        }
+
+        // drops the mappings and deletes the backing file; the pages are released once the buffers are collected
+        @Override
+        public void close() {
+            doubles = null;
+            floats = null;
+            halves = null;
+            if(!file.delete()){
+                file.deleteOnExit(); // still mapped on platforms that lock mapped files
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.chen0040.lof;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Bounded, lock-free cache of distances between pairs of rows, shared by the threads scoring a batch. It is
+ * direct-mapped: a pair hashes to one slot and a newer pair evicts whatever the slot held. Each slot stores the distance
+ * bits and the pair key xor-ed with them, written and read as two separate longs; a read whose halves come from two
+ * different writes fails the xor check and counts as a miss, so no lock is needed.
+ */
+class PairDistanceCache {
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray values;
+    private final int mask;
+
+    // capacity is rounded up to a power of two
+    PairDistanceCache(int capacity){
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        keys = new AtomicLongArray(size);
+        values = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    int capacity(){
+        return mask + 1;
+    }
+
+    // cached distance between rows i and j, or NaN if it is not cached
+    double get(int i, int j){
+        long key = key(i, j);
+        int slot = slot(key);
+        long bits = values.get(slot);
+        if((keys.get(slot) ^ bits) != key) return Double.NaN;
+        return Double.longBitsToDouble(bits);
+    }
+
+    void put(int i, int j, double distance){
+        long key = key(i, j);
+        int slot = slot(key);
+        long bits = Double.doubleToRawLongBits(distance);
+        values.set(slot, bits);
+        keys.set(slot, key ^ bits);
+    }
+
+    // symmetric in i and j, and never 0 for i != j, which an empty slot would match
+    private static long key(int i, int j){
+        return i < j ? ((long) i << 32) | j : ((long) j << 32) | i;
+    }
+
+    private int slot(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
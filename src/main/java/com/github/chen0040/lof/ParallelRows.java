@@ -0,0 +1,102 @@
+package com.github.chen0040.lof;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Runs per-row work of the detectors over contiguous row ranges on an executor. A batch is cut into a few chunks per
+ * worker thread rather than one task per row, so the scheduling cost stays independent of the batch size while the
+ * work-stealing pool still balances uneven chunks.
+ *
+ * By default all detectors share one work-stealing pool sized to the available cores; its threads are daemons and
+ * live for the life of the JVM, so no detector ever creates or shuts down a pool of its own.
+ */
+public class ParallelRows {
+
+    // chunks smaller than this are not worth a task of their own
+    static final int MIN_CHUNK_SIZE = 64;
+
+    // chunks per worker thread, so that a slow chunk does not leave the other workers idle
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private ParallelRows(){
+    }
+
+    private static class SharedExecutor {
+        static final ExecutorService instance = Executors.newWorkStealingPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @FunctionalInterface
+    public interface RangeTask {
+        // processes the rows [from, to)
+        void run(int from, int to);
+    }
+
+    public static ExecutorService sharedExecutor(){
+        return SharedExecutor.instance;
+    }
+
+    /**
+     * Runs task over the rows [0, rowCount) split into chunks, and returns once every chunk has completed. A null
+     * executor, or a batch too small to split, runs the whole range on the calling thread.
+     */
+    public static void forEach(ExecutorService executor, int rowCount, RangeTask task){
+        forEach(executor, rowCount, MIN_CHUNK_SIZE, task);
+    }
+
+    // as forEach(executor, rowCount, task), for work items heavier than a row that are worth chunks of minChunkSize
+    public static void forEach(ExecutorService executor, int rowCount, int minChunkSize, RangeTask task){
+        int chunkCount = executor == null ? 1 : Math.min(rowCount / minChunkSize, parallelism(executor) * CHUNKS_PER_THREAD);
+        if(chunkCount <= 1){
+            task.run(0, rowCount);
+            return;
+        }
+
+        // the pool may hand back a copy of a failure, so the original one is kept aside and rethrown
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Callable<Void>> chunks = new ArrayList<>(chunkCount);
+        for(int c = 0; c < chunkCount; ++c){
+            int from = (int)((long) rowCount * c / chunkCount);
+            int to = (int)((long) rowCount * (c + 1) / chunkCount);
+            chunks.add(() -> {
+                try {
+                    task.run(from, to);
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                    throw e;
+                }
+                return null;
+            });
+        }
+
+        try {
+            for(Future<Void> result : executor.invokeAll(chunks)){
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while scoring rows", e);
+        } catch (ExecutionException e) {
+            Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static int parallelism(ExecutorService executor){
+        if(executor instanceof ForkJoinPool){
+            return ((ForkJoinPool) executor).getParallelism();
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.chen0040.lof;
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Streaming quantile sketch (Karnin, Lang and Liberty, "Optimal Quantile Approximation in Streams", 2016) for
+ * estimating an anomaly threshold from an unbounded stream of scores without storing or sorting them.
+ *
+ * Values enter the compactor at level 0; an item at level h stands for 2^h values of the stream. When the sketch
+ * exceeds its capacity, the lowest full level is sorted and every other item, starting from a random offset, moves
+ * up one level while the rest are dropped. Capacities shrink geometrically towards the lower levels, so the sketch
+ * holds O(k) items and the rank error of a quantile is about 1.7 / k of the stream length.
+ */
+public class QuantileSketch {
+
+    public static final int DEFAULT_K = 200;
+
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+    private final int k;
+    private final Random random;
+
+    // levels[h][0 .. sizes[h]) are the items of level h, unsorted
+    private double[][] levels;
+    private int[] sizes;
+    private int levelCount;
+
+    // capacities[h] is the capacity of level h and totalCapacity their sum; both depend only on levelCount
+    private int[] capacities;
+    private int totalCapacity;
+    private int itemCount;
+    private long count;
+
+    public QuantileSketch(){
+        this(DEFAULT_K);
+    }
+
+    public QuantileSketch(int k){
+        this(k, new Random(k));
+    }
+
+    public QuantileSketch(int k, Random random){
+        if(k < 8) throw new IllegalArgumentException("k must be at least 8");
+        this.k = k;
+        this.random = random;
+        levels = new double[][] { new double[k] };
+        sizes = new int[1];
+        levelCount = 1;
+        updateCapacities();
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    // number of values added to the sketch
+    public long count(){
+        return count;
+    }
+
+    public boolean isEmpty(){
+        return count == 0;
+    }
+
+    // adds a value; NaN is ignored
+    public void update(double value){
+        if(Double.isNaN(value)) return;
+        add(0, value);
+        count++;
+        while(itemCount > totalCapacity){
+            compress();
+        }
+    }
+
+    /**
+     * Estimated value at quantile q in [0, 1] of the values added so far: q = 0 gives the minimum kept and q = 1 the
+     * maximum. Returns NaN if the sketch is empty.
+     */
+    public double quantile(double q){
+        if(count == 0) return Double.NaN;
+
+        double[] values = new double[itemCount];
+        long[] weights = new long[itemCount];
+        int n = 0;
+        for(int h = 0; h < levelCount; ++h){
+            for(int j = 0; j < sizes[h]; ++j){
+                values[n] = levels[h][j];
+                weights[n] = 1L << h;
+                n++;
+            }
+        }
+        sort(values, weights, 0, n - 1);
+
+        long total = 0;
+        for(int j = 0; j < n; ++j){
+            total += weights[j];
+        }
+
+        double target = q * total;
+        long cumulative = 0;
+        for(int j = 0; j < n; ++j){
+            cumulative += weights[j];
+            if(cumulative >= target) return values[j];
+        }
+        return values[n - 1];
+    }
+
+    // items a level may hold before it is compacted; the top level holds k, each level below 2/3 as many
+    private void updateCapacities(){
+        capacities = new int[levelCount];
+        totalCapacity = 0;
+        for(int h = 0; h < levelCount; ++h){
+            int depth = levelCount - 1 - h;
+            capacities[h] = Math.max(2, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+            totalCapacity += capacities[h];
+        }
+    }
+
+    private void compress(){
+        for(int h = 0; h < levelCount; ++h){
+            if(sizes[h] >= capacities[h]){
+                if(h + 1 == levelCount){
+                    addLevel();
+                }
+                compact(h);
+                return;
+            }
+        }
+    }
+
+    // promotes every other item of a sorted level to the level above; an odd item out stays behind
+    private void compact(int h){
+        double[] level = levels[h];
+        int size = sizes[h];
+        Arrays.sort(level, 0, size);
+
+        int kept = size % 2;
+        int offset = random.nextBoolean() ? 1 : 0;
+        for(int j = kept + offset; j < size; j += 2){
+            add(h + 1, level[j]);
+        }
+        // add() counted the promoted items; each replaces the pair it was drawn from
+        itemCount -= size - kept;
+        sizes[h] = kept;
+    }
+
+    private void add(int h, double value){
+        if(sizes[h] == levels[h].length){
+            levels[h] = Arrays.copyOf(levels[h], Math.max(4, levels[h].length * 2));
+        }
+        levels[h][sizes[h]++] = value;
+        itemCount++;
+    }
+
+    private void addLevel(){
+        levels = Arrays.copyOf(levels, levelCount + 1);
+        sizes = Arrays.copyOf(sizes, levelCount + 1);
+        levels[levelCount] = new double[k];
+        levelCount++;
+        updateCapacities();
+    }
+
+    private static void sort(double[] values, long[] weights, int lo, int hi){
+        while(lo < hi){
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while(i <= j){
+                while(values[i] < pivot) i++;
+                while(values[j] > pivot) j--;
+                if(i <= j){
+                    double tv = values[i]; values[i] = values[j]; values[j] = tv;
+                    long tw = weights[i]; weights[i] = weights[j]; weights[j] = tw;
+                    i++;
+                    j--;
+                }
+            }
+            if(j - lo < hi - i){
+                sort(values, weights, lo, j);
+                lo = i;
+            } else {
+                sort(values, weights, i, hi);
+                hi = j;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.chen0040.lof;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Collects every candidate within a radius; sorted ascending by distance once the search is done.
+ */
+class RangeCollector {
+    private int[] index = new int[16];
+    private double[] distance = new double[16];
+    private int size = 0;
+
+    void add(int i, double d){
+        if(size == index.length){
+            index = Arrays.copyOf(index, size * 2);
+            distance = Arrays.copyOf(distance, size * 2);
+        }
+        index[size] = i;
+        distance[size] = d;
+        size++;
+    }
+
+    Neighbors toNeighbors(){
+        int[] idx = Arrays.copyOf(index, size);
+        double[] dist = Arrays.copyOf(distance, size);
+        sort(idx, dist, 0, size - 1);
+        return new Neighbors(idx, dist);
+    }
+
+    private static void sort(int[] idx, double[] dist, int lo, int hi){
+        while(lo < hi){
+            if(hi - lo < 16){
+                for(int i = lo + 1; i <= hi; ++i){
+                    for(int j = i; j > lo && dist[j - 1] > dist[j]; --j){
+                        swap(idx, dist, j, j - 1);
+                    }
+                }
+                return;
+            }
+            double pivot = dist[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while(i <= j){
+                while(dist[i] < pivot) i++;
+                while(dist[j] > pivot) j--;
+                if(i <= j){
+                    swap(idx, dist, i++, j--);
+                }
+            }
+            if(j - lo < hi - i){
+                sort(idx, dist, lo, j);
+                lo = i;
+            } else {
+                sort(idx, dist, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static void swap(int[] idx, double[] dist, int i, int j){
+        int ti = idx[i]; idx[i] = idx[j]; idx[j] = ti;
+        double td = dist[i]; dist[i] = dist[j]; dist[j] = td;
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.function.BiFunction;
+
+
+/**
+ * Adapter of a distance measure defined on DataRows, applied to the rows behind the values; see DistanceMeasure.of.
+ */
+class RowDistanceMeasure implements DistanceMeasure {
+
+    private final BiFunction<DataRow, DataRow, Double> distance;
+
+    RowDistanceMeasure(BiFunction<DataRow, DataRow, Double> distance){
+        this.distance = distance;
+    }
+
+    @Override
+    public double distance(double[] x1, int offset1, double[] x2, int offset2, int dimension) {
+        throw new IllegalStateException("a distance measure defined on DataRows cannot be evaluated on raw vectors");
+    }
+
+    @Override
+    public double distance(DataRow row1, double[] x1, int offset1, DataRow row2, double[] x2, int offset2, int dimension) {
+        if(row1 == null || row2 == null) {
+            return distance(x1, offset1, x2, offset2, dimension);
+        }
+        return apply(row1, row2);
+    }
+
+    double apply(DataRow row1, DataRow row2){
+        return distance.apply(row1, row2);
+    }
+
+    @Override
+    public boolean supportsVectors() {
+        return false;
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.chen0040.lof;
+
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * For every row of a batch, the distances to the other rows within a radius, sorted ascending and packed one row after
+ * another. The number of neighbors of a row within any smaller radius is then a pointer that only moves forward while
+ * the radius grows. Only the distances below the radius are kept, so a small radius keeps a small part of the matrix.
+ * The rows share the storage (heap or memory-mapped, double or float) of the PackedDistanceMatrix they are built from.
+ */
+class SortedDistances implements Closeable {
+
+    private final PackedDistanceMatrix store;
+    // row i occupies the entries [start[i], start[i + 1])
+    private final long[] start;
+
+    private SortedDistances(PackedDistanceMatrix store, long[] start){
+        this.store = store;
+        this.start = start;
+    }
+
+    static SortedDistances of(PackedDistanceMatrix distances, double radius, long memoryBudget, ExecutorService executor){
+        int m = distances.size();
+
+        int[] lengths = new int[m];
+        ParallelRows.forEach(executor, m, (from, to) -> {
+            for(int i = from; i < to; ++i){
+                int length = 0;
+                for(int j=0; j < m; ++j){
+                    if(j != i && distances.get(i, j) < radius) length++;
+                }
+                lengths[i] = length;
+            }
+        });
+
+        long[] start = new long[m + 1];
+        for(int i=0; i < m; ++i){
+            start[i + 1] = start[i] + lengths[i];
+        }
+
+        PackedDistanceMatrix store = PackedDistanceMatrix.allocate(m, start[m], distances.precision(), memoryBudget);
+        ParallelRows.forEach(executor, m, (from, to) -> {
+            double[] row = new double[m];
+            for(int i = from; i < to; ++i){
+                int length = 0;
+                for(int j=0; j < m; ++j){
+                    if(j == i) continue;
+                    double distance = distances.get(i, j);
+                    if(distance < radius) row[length++] = distance;
+                }
+                Arrays.sort(row, 0, length);
+                for(int t=0; t < length; ++t){
+                    store.write(start[i] + t, row[t]);
+                }
+            }
+        });
+
+        return new SortedDistances(store, start);
+    }
+
+    int size(){
+        return start.length - 1;
+    }
+
+    long heapBytes(){
+        return store.heapBytes();
+    }
+
+    // number of neighbors of row i within the radius the lists were built for
+    int length(int i){
+        return (int) (start[i + 1] - start[i]);
+    }
+
+    // distance from row i to its t-th nearest neighbor
+    double get(int i, int t){
+        return store.read(start[i] + t);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
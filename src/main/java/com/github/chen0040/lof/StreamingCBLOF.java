@@ -0,0 +1,334 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+import com.github.chen0040.data.utils.discretizers.AttributeValueDiscretizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * CBLOF over an unbounded stream of categorical rows. Every inserted row is scored against the current clusters and
+ * then added to its most similar cluster, or opens a new cluster when no similarity reaches similarityThreshold, as in
+ * one step of the Squeezer pass of CBLOF. There is no refit.
+ *
+ * The counts of all clusters decay by the same factor per inserted row, so that a row halfLife rows old weighs half as
+ * much as a new one. Instead of multiplying every count on every insert, new rows are added with a weight that grows by
+ * the inverse factor, and all counts are rescaled only when that weight grows too large; similarities are ratios of
+ * counts within one cluster and do not depend on the scale. The split into large and small clusters is recomputed
+ * lazily, every splitInterval inserts, and clusters whose weight has faded below minClusterWeight are dropped then.
+ * Scoring a row therefore costs one similarity per cluster, with the sort of the split amortized over the interval.
+ *
+ * Numeric cells are only taken into account through a discretizer fitted beforehand, such as the KMeansDiscretizer of a
+ * CBLOF fitted on a warm-up batch.
+ */
+public class StreamingCBLOF {
+
+    private static final double RESCALE_LIMIT = 1e100;
+
+    private double threshold = 0.5;
+    private double similarityThreshold = 0.8;
+    private double alpha = 0.8;
+    private double beta = 0.1;
+    private double halfLife = 10000; // in inserted rows; Double.POSITIVE_INFINITY disables the decay
+    private int splitInterval = 1000;
+    private double minClusterWeight = 0.01;
+    private AttributeValueDiscretizer discretizer;
+
+    // when set, the threshold follows the (1 - ratio) quantile of the scores of the rows at the time they were inserted
+    private boolean automaticThresholding = false;
+    private double automaticThresholdingRatio = 0.05;
+    private QuantileSketch thresholdSketch = new QuantileSketch();
+
+    private final CategoricalDictionary dictionary = new CategoricalDictionary();
+    private final List<Cluster> clusters = new ArrayList<>();
+
+    // weight of the next inserted row in the current scale of the counts
+    private double increment = 1;
+    private long insertCount = 0;
+
+    private boolean[] large = new boolean[0];
+    private boolean hasLarge = false;
+    private int insertsSinceSplit = 0;
+
+    public StreamingCBLOF(){
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public double getSimilarityThreshold() {
+        return similarityThreshold;
+    }
+
+    public void setSimilarityThreshold(double similarityThreshold) {
+        this.similarityThreshold = similarityThreshold;
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    public void setAlpha(double alpha) {
+        this.alpha = alpha;
+        insertsSinceSplit = splitInterval;
+    }
+
+    public double getBeta() {
+        return beta;
+    }
+
+    public void setBeta(double beta) {
+        this.beta = beta;
+        insertsSinceSplit = splitInterval;
+    }
+
+    public double getHalfLife() {
+        return halfLife;
+    }
+
+    public void setHalfLife(double halfLife) {
+        this.halfLife = halfLife;
+    }
+
+    public int getSplitInterval() {
+        return splitInterval;
+    }
+
+    public void setSplitInterval(int splitInterval) {
+        this.splitInterval = splitInterval;
+    }
+
+    public double getMinClusterWeight() {
+        return minClusterWeight;
+    }
+
+    public void setMinClusterWeight(double minClusterWeight) {
+        this.minClusterWeight = minClusterWeight;
+    }
+
+    public AttributeValueDiscretizer getDiscretizer() {
+        return discretizer;
+    }
+
+    public void setDiscretizer(AttributeValueDiscretizer discretizer) {
+        this.discretizer = discretizer;
+    }
+
+    public boolean isAutomaticThresholding() {
+        return automaticThresholding;
+    }
+
+    public void setAutomaticThresholding(boolean automaticThresholding) {
+        this.automaticThresholding = automaticThresholding;
+    }
+
+    public double getAutomaticThresholdingRatio() {
+        return automaticThresholdingRatio;
+    }
+
+    public void setAutomaticThresholdingRatio(double automaticThresholdingRatio) {
+        this.automaticThresholdingRatio = automaticThresholdingRatio;
+    }
+
+    public QuantileSketch getThresholdSketch() {
+        return thresholdSketch;
+    }
+
+    public void setThresholdSketch(QuantileSketch thresholdSketch) {
+        this.thresholdSketch = thresholdSketch;
+    }
+
+    public int clusterCount(){
+        return clusters.size();
+    }
+
+    // decayed number of rows in the cluster with the given index
+    public double clusterWeight(int cluster){
+        return clusters.get(cluster).weight / increment;
+    }
+
+    public long insertCount(){
+        return insertCount;
+    }
+
+    /**
+     * Scores the row against the current clusters, then adds it to them. Returns the CBLOF of the row when it was
+     * added, as transform() would have given, 0 for the first row.
+     */
+    public double insert(DataRow tuple){
+        int[] row = dictionary.encodeAndAdd(discretize(tuple));
+        refreshSplit();
+
+        double[] similarities = new double[clusters.size()];
+        int closest = closest(row, similarities);
+        double score = score(similarities, closest);
+
+        if(closest < 0 || similarities[closest] < similarityThreshold){
+            clusters.add(new Cluster());
+            closest = clusters.size() - 1;
+            large = Arrays.copyOf(large, clusters.size());
+        }
+        clusters.get(closest).add(row, increment, dictionary);
+
+        decay();
+        insertCount++;
+        insertsSinceSplit++;
+
+        if(automaticThresholding){
+            thresholdSketch.update(score);
+            threshold = thresholdSketch.quantile(1 - automaticThresholdingRatio);
+        }
+
+        return score;
+    }
+
+    // the CBLOF of the row against the current clusters, without adding it
+    public double transform(DataRow tuple){
+        int[] row = dictionary.encode(discretize(tuple));
+        refreshSplit();
+
+        double[] similarities = new double[clusters.size()];
+        return score(similarities, closest(row, similarities));
+    }
+
+    public boolean isAnomaly(DataRow tuple){
+        return transform(tuple) > threshold;
+    }
+
+    private DataRow discretize(DataRow tuple){
+        return discretizer == null ? tuple : discretizer.transform(tuple);
+    }
+
+    // fills the similarities of the row to every cluster and returns the index of the most similar one, or -1
+    private int closest(int[] row, double[] similarities){
+        double maxSim = Double.MIN_VALUE;
+        int closest = -1;
+        for(int c=0; c < clusters.size(); ++c){
+            similarities[c] = clusters.get(c).similarity(row, dictionary);
+            if(similarities[c] > maxSim){
+                maxSim = similarities[c];
+                closest = c;
+            }
+        }
+        return closest;
+    }
+
+    // CBLOF of a row in its closest cluster; a row that no cluster is similar enough to would open its own, of weight 1
+    private double score(double[] similarities, int closest){
+        if(clusters.isEmpty()) return 0;
+
+        boolean own = closest < 0 || similarities[closest] < similarityThreshold;
+        if(!own && large[closest]){
+            return clusters.get(closest).weight / increment * (1 - similarities[closest]);
+        }
+
+        double size = own ? 1 : clusters.get(closest).weight / increment;
+        double minDistance = Double.MAX_VALUE;
+        for(int c=0; c < similarities.length; ++c){
+            if(large[c]){
+                minDistance = Math.min(minDistance, 1 - similarities[c]);
+            }
+        }
+        return size * minDistance;
+    }
+
+    private void decay(){
+        if(Double.isInfinite(halfLife)) return;
+        increment *= Math.pow(2, 1 / halfLife);
+        if(increment > RESCALE_LIMIT){
+            for(Cluster cluster : clusters){
+                cluster.scale(1 / increment);
+            }
+            increment = 1;
+        }
+    }
+
+    // drops the faded clusters and splits the others into large and small, as CBLOF does after its fit; until there is
+    // a large cluster the split is recomputed on every row
+    private void refreshSplit(){
+        if(insertsSinceSplit < splitInterval && hasLarge) return;
+        insertsSinceSplit = 0;
+
+        double minWeight = minClusterWeight * increment;
+        clusters.removeIf(cluster -> cluster.weight < minWeight);
+
+        int count = clusters.size();
+        Integer[] order = new Integer[count];
+        double total = 0;
+        for(int c=0; c < count; ++c){
+            order[c] = c;
+            total += clusters.get(c).weight;
+        }
+        // descending by weight
+        Arrays.sort(order, (c1, c2) -> Double.compare(clusters.get(c2).weight, clusters.get(c1).weight));
+
+        large = new boolean[count];
+        hasLarge = count > 0;
+        double accumulated = 0;
+        for(int split = 0; split < count; ++split){
+            double current = clusters.get(order[split]).weight;
+            large[order[split]] = true;
+            if(split == count - 1) break;
+            accumulated += current;
+            if(accumulated >= total * alpha && split != 0) break;
+            double ratio = current / clusters.get(order[split + 1]).weight;
+            if(ratio < beta && split != 0) break;
+        }
+    }
+
+    /**
+     * Decayed counts of a cluster: for every feature of the dictionary the weight of its rows with that (column, value)
+     * pair, for every column the weight of its rows with a value in it, and the weight of all its rows. The arrays grow
+     * with the dictionary.
+     */
+    private static class Cluster {
+        private double[] counts = new double[16];
+        private double[] columnTotals = new double[4];
+        private double weight = 0;
+
+        void add(int[] row, double increment, CategoricalDictionary dictionary){
+            if(counts.length < dictionary.featureCount()){
+                counts = Arrays.copyOf(counts, Math.max(dictionary.featureCount(), counts.length * 2));
+            }
+            if(columnTotals.length < dictionary.columnCount()){
+                columnTotals = Arrays.copyOf(columnTotals, Math.max(dictionary.columnCount(), columnTotals.length * 2));
+            }
+            for(int feature : row){
+                counts[feature] += increment;
+                columnTotals[dictionary.column(feature)] += increment;
+            }
+            weight += increment;
+        }
+
+        double similarity(int[] row, CategoricalDictionary dictionary){
+            double similarity = 0;
+            for(int feature : row){
+                if(feature == CategoricalDictionary.UNKNOWN || feature >= counts.length) continue;
+                int column = dictionary.column(feature);
+                double count_Total = column < columnTotals.length ? columnTotals[column] : 0;
+                if(count_Total > 0){
+                    similarity += counts[feature] / count_Total;
+                }
+            }
+            return similarity / row.length;
+        }
+
+        void scale(double factor){
+            for(int i=0; i < counts.length; ++i){
+                counts[i] *= factor;
+            }
+            for(int i=0; i < columnTotals.length; ++i){
+                columnTotals[i] *= factor;
+            }
+            weight *= factor;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.chen0040.lof;
+
+
+/**
+ * Order statistics over primitive score arrays for automatic thresholding. A threshold only needs the score at one
+ * rank, so it is found by quickselect in expected linear time instead of sorting the whole batch. Scores are ordered
+ * as by Double.compare, so NaN ranks above every number, as it did when the scores were sorted.
+ */
+public class Thresholds {
+
+    private Thresholds(){
+    }
+
+    // the k-th smallest value (k = 0 is the minimum); values is left untouched
+    public static double select(double[] values, int k){
+        double[] a = values.clone();
+        int n = a.length;
+
+        // NaN ranks above every number; move them to the end so that the numbers can be compared with < and >
+        int end = n;
+        for(int i = n - 1; i >= 0; --i){
+            if(Double.isNaN(a[i])){
+                a[i] = a[--end];
+                a[end] = Double.NaN;
+            }
+        }
+        if(k >= end) return Double.NaN;
+
+        int lo = 0, hi = end - 1;
+        while(lo < hi){
+            double pivot = median(a[lo], a[(lo + hi) >>> 1], a[hi]);
+            int i = lo, j = hi;
+            while(i <= j){
+                while(a[i] < pivot) i++;
+                while(a[j] > pivot) j--;
+                if(i <= j){
+                    double temp = a[i];
+                    a[i++] = a[j];
+                    a[j--] = temp;
+                }
+            }
+            if(k <= j) hi = j;
+            else if(k >= i) lo = i;
+            else break;
+        }
+        return a[k];
+    }
+
+    // the value at position rank when the values are sorted descendingly (rank = 0 is the maximum)
+    public static double kthLargest(double[] values, int rank){
+        return select(values, values.length - 1 - rank);
+    }
+
+    // the smallest value greater than threshold, or threshold itself if there is none
+    public static double nextAbove(double[] values, double threshold){
+        double next = Double.POSITIVE_INFINITY;
+        boolean found = false;
+        for(double value : values){
+            if(value > threshold && value < next){
+                next = value;
+                found = true;
+            }
+        }
+        return found ? next : threshold;
+    }
+
+    public static double min(double[] values){
+        double min = Double.NaN;
+        for(double value : values){
+            if(Double.isNaN(min) || value < min) min = value;
+        }
+        return min;
+    }
+
+    private static double median(double a, double b, double c){
+        if(a < b){
+            if(b < c) return b;
+            return a < c ? c : a;
+        }
+        if(a < c) return a;
+        return b < c ? c : b;
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataRow;
+
+import java.util.Random;
+
+
+/**
+ * Vantage-point tree over the rows of a batch. Only needs the distance measure, so it works for any custom metric;
+ * the pruning relies on the triangle inequality, which the distance measure must satisfy.
+ */
+public class VPTree implements NeighborIndex {
+
+    private static final int LEAF_SIZE = 16;
+
+    private final DataMatrix matrix;
+    private final DistanceMeasure distanceMeasure;
+    private final int[] order;
+    private final double[] buffer;
+    private final Node root;
+
+    private static class Node {
+        int lo;
+        int hi;
+        int vantage = -1;
+        // rows closer to the vantage point than mu go inside, the others outside
+        double mu;
+        Node inside;
+        Node outside;
+
+        boolean isLeaf(){
+            return vantage < 0;
+        }
+    }
+
+    public VPTree(DataMatrix matrix, DistanceMeasure distanceMeasure){
+        this.matrix = matrix;
+        this.distanceMeasure = distanceMeasure;
+
+        int m = matrix.rowCount();
+        order = new int[m];
+        buffer = new double[m];
+        for(int i=0; i < m; ++i){
+            order[i] = i;
+        }
+        root = build(0, m, new Random(m));
+    }
+
+    private Node build(int lo, int hi, Random random){
+        Node node = new Node();
+        node.lo = lo;
+        node.hi = hi;
+        if(hi - lo <= LEAF_SIZE) return node;
+
+        // move a random vantage point to the front of the range
+        int pick = lo + random.nextInt(hi - lo);
+        int temp = order[lo]; order[lo] = order[pick]; order[pick] = temp;
+
+        int vantage = order[lo];
+        for(int i = lo + 1; i < hi; ++i){
+            buffer[i] = DistanceMeasureService.getDistance(matrix, vantage, matrix, order[i], distanceMeasure);
+        }
+
+        int mid = (lo + 1 + hi) >>> 1;
+        select(lo + 1, hi - 1, mid);
+
+        node.vantage = vantage;
+        node.mu = buffer[mid];
+        node.inside = build(lo + 1, mid, random);
+        node.outside = build(mid, hi, random);
+        return node;
+    }
+
+    // partially sorts order[lo..hi] (and the distances in buffer) so that position nth holds the median distance
+    private void select(int lo, int hi, int nth){
+        while(lo < hi){
+            double pivot = buffer[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while(i <= j){
+                while(buffer[i] < pivot) i++;
+                while(buffer[j] > pivot) j--;
+                if(i <= j){
+                    int ti = order[i]; order[i] = order[j]; order[j] = ti;
+                    double td = buffer[i]; buffer[i] = buffer[j]; buffer[j] = td;
+                    i++;
+                    j--;
+                }
+            }
+            if(nth <= j) hi = j;
+            else if(nth >= i) lo = i;
+            else return;
+        }
+    }
+
+    @Override
+    public DataMatrix matrix() {
+        return matrix;
+    }
+
+    @Override
+    public void knn(DataMatrix query, int row, BoundedMaxHeap heap) {
+        if(heap.capacity() > 0 && root != null) {
+            knn(root, query, row, query.row(row), heap);
+        }
+        heap.sort();
+    }
+
+    private void knn(Node node, DataMatrix query, int row, DataRow self, BoundedMaxHeap heap){
+        if(node.isLeaf()){
+            for(int i = node.lo; i < node.hi; ++i){
+                int index = order[i];
+                if(matrix.row(index) == self) continue;
+                heap.offer(index, DistanceMeasureService.getDistance(matrix, index, query, row, distanceMeasure));
+            }
+            return;
+        }
+
+        double d = DistanceMeasureService.getDistance(matrix, node.vantage, query, row, distanceMeasure);
+        if(matrix.row(node.vantage) != self){
+            heap.offer(node.vantage, d);
+        }
+
+        if(d < node.mu){
+            knn(node.inside, query, row, self, heap);
+            if(d + heap.bound() >= node.mu){
+                knn(node.outside, query, row, self, heap);
+            }
+        } else {
+            knn(node.outside, query, row, self, heap);
+            if(d - heap.bound() <= node.mu){
+                knn(node.inside, query, row, self, heap);
+            }
+        }
+    }
+
+    @Override
+    public Neighbors range(DataMatrix query, int row, double radius) {
+        RangeCollector collector = new RangeCollector();
+        if(root != null) {
+            range(root, query, row, query.row(row), radius, collector);
+        }
+        return collector.toNeighbors();
+    }
+
+    private void range(Node node, DataMatrix query, int row, DataRow self, double radius, RangeCollector collector){
+        if(node.isLeaf()){
+            for(int i = node.lo; i < node.hi; ++i){
+                int index = order[i];
+                if(matrix.row(index) == self) continue;
+                double distance = DistanceMeasureService.getDistance(matrix, index, query, row, distanceMeasure);
+                if(distance < radius){
+                    collector.add(index, distance);
+                }
+            }
+            return;
+        }
+
+        double d = DistanceMeasureService.getDistance(matrix, node.vantage, query, row, distanceMeasure);
+        if(matrix.row(node.vantage) != self && d < radius){
+            collector.add(node.vantage, d);
+        }
+
+        if(d - radius <= node.mu){
+            range(node.inside, query, row, self, radius, collector);
+        }
+        if(d + radius >= node.mu){
+            range(node.outside, query, row, self, radius, collector);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.evaluators.BinaryClassifierEvaluator;
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataQuery;
+import com.github.chen0040.data.frame.Sampler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class ALOCIUnitTest {
+
+   private static final Logger logger = LoggerFactory.getLogger(ALOCIUnitTest.class);
+
+   private static Random random = new Random(42);
+
+   public static double rand(){
+      return random.nextDouble();
+   }
+
+   public static double rand(double lower, double upper){
+      return rand() * (upper - lower) + lower;
+   }
+
+   public static double randn(){
+      return random.nextGaussian();
+   }
+
+   @Test
+   public void testSimple(){
+
+      DataQuery.DataFrameQueryBuilder schema = DataQuery.blank()
+              .newInput("c1")
+              .newInput("c2")
+              .newOutput("anomaly")
+              .end();
+
+      Sampler.DataSampleBuilder negativeSampler = new Sampler()
+              .forColumn("c1").generate((name, index) -> randn() * 0.3 + (index % 2 == 0 ? -2 : 2))
+              .forColumn("c2").generate((name, index) -> randn() * 0.3 + (index % 2 == 0 ? -2 : 2))
+              .forColumn("anomaly").generate((name, index) -> 0.0)
+              .end();
+
+      Sampler.DataSampleBuilder positiveSampler = new Sampler()
+              .forColumn("c1").generate((name, index) -> rand(-4, 4))
+              .forColumn("c2").generate((name, index) -> rand(-4, 4))
+              .forColumn("anomaly").generate((name, index) -> 1.0)
+              .end();
+
+      DataFrame data = schema.build();
+
+      data = negativeSampler.sample(data, 2000);
+      data = positiveSampler.sample(data, 40);
+
+      ALOCI method = new ALOCI();
+      DataFrame learnedData = method.fitAndTransform(data);
+
+      BinaryClassifierEvaluator evaluator = new BinaryClassifierEvaluator();
+
+      List<Double> outlierScores = new ArrayList<>();
+      List<Double> inlierScores = new ArrayList<>();
+      for(int i = 0; i < learnedData.rowCount(); ++i){
+         boolean predicted = learnedData.row(i).categoricalTarget().equals("1");
+         boolean actual = data.row(i).target() == 1.0;
+         evaluator.evaluate(actual, predicted);
+         (actual ? outlierScores : inlierScores).add(learnedData.row(i).getTargetCell("ALOCI"));
+      }
+
+      evaluator.report();
+
+      // the MDEF / sigma_MDEF ratio should rank the planted outliers above the clustered points
+      double concordant = 0;
+      for(double outlier : outlierScores){
+         for(double inlier : inlierScores){
+            if(outlier > inlier) concordant += 1;
+            else if(outlier == inlier) concordant += 0.5;
+         }
+      }
+      double auc = concordant / (outlierScores.size() * inlierScores.size());
+      logger.info("auc: {}", auc);
+      assertThat(auc).isGreaterThan(0.85);
+   }
+}
@@ -0,0 +1,50 @@
+package com.github.chen0040.lof;
+
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class BoundedMaxHeapUnitTest {
+
+   @Test
+   public void test_keeps_k_smallest(){
+      Random random = new Random();
+      BoundedMaxHeap heap = new BoundedMaxHeap(10);
+
+      for(int round = 0; round < 3; ++round) {
+         double[] costs = new double[100];
+         heap.reset(10);
+         for (int i = 0; i < 100; ++i) {
+            costs[i] = random.nextDouble();
+            heap.offer(i, costs[i]);
+         }
+         heap.sort();
+
+         double[] expected = costs.clone();
+         Arrays.sort(expected);
+
+         assertThat(heap.size()).isEqualTo(10);
+         for (int j = 0; j < 10; ++j) {
+            assertThat(heap.distance(j)).isEqualTo(expected[j]);
+            assertThat(costs[heap.index(j)]).isEqualTo(expected[j]);
+         }
+      }
+   }
+
+   @Test
+   public void test_rejects_candidates_beyond_bound(){
+      BoundedMaxHeap heap = new BoundedMaxHeap(2);
+      assertThat(heap.offer(0, 3.0)).isTrue();
+      assertThat(heap.offer(1, 1.0)).isTrue();
+      assertThat(heap.bound()).isEqualTo(3.0);
+      assertThat(heap.offer(2, 5.0)).isFalse();
+      assertThat(heap.offer(3, 2.0)).isTrue();
+      assertThat(heap.bound()).isEqualTo(2.0);
+   }
+
+}
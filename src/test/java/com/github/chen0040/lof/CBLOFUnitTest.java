@@ -5,11 +5,21 @@ import com.github.chen0040.data.evaluators.BinaryClassifierEvaluator;
 import com.github.chen0040.data.frame.DataFrame;
 import com.github.chen0040.data.frame.DataQuery;
 import com.github.chen0040.data.frame.Sampler;
+import com.github.chen0040.data.utils.discretizers.KMeansDiscretizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 import static org.testng.Assert.*;
 
@@ -87,4 +97,95 @@ public class CBLOFUnitTest {
 
 
    }
+
+   @Test
+   public void testScoreAll(){
+      CBLOF method = new CBLOF();
+      method.setParallel(true);
+      method.fitAndTransform(TestData.twoClusters(random, 300));
+
+      DataFrame test = TestData.twoClusters(random, 500);
+      double[] scores = method.scoreAll(test);
+      for(int i = 0; i < test.rowCount(); ++i){
+         assertThat(scores[i]).isEqualTo(method.transform(test.row(i)));
+      }
+   }
+
+   // every row is labeled with the index of its cluster once the clusters are sorted by decreasing size
+   @Test
+   public void testClusterLabels(){
+      CBLOF method = new CBLOF();
+      DataFrame learnedData = method.fitAndTransform(TestData.twoClusters(random, 400, 10));
+
+      int clusterCount = method.getClusters().size();
+      assertThat(clusterCount).isGreaterThan(1);
+
+      int[] sizes = new int[clusterCount];
+      for(int i = 0; i < learnedData.rowCount(); ++i){
+         sizes[Integer.parseInt(learnedData.row(i).getCategoricalTargetCell("cluster"))]++;
+      }
+      for(int k = 0; k < clusterCount; ++k){
+         assertThat(sizes[k]).isGreaterThan(0);
+         if(k > 0) assertThat(sizes[k]).isLessThanOrEqualTo(sizes[k - 1]);
+      }
+
+      // the anomaly label of every row follows from its CBLOF column
+      for(int i = 0; i < learnedData.rowCount(); ++i){
+         double score = learnedData.row(i).getTargetCell("CBLOF");
+         assertThat(learnedData.row(i).getCategoricalTargetCell("anomaly")).isEqualTo(score > method.getThreshold() ? "1" : "0");
+      }
+   }
+
+   // every mini-batch is compared on several tasks of a pool and gives the same clusters as on the calling thread alone,
+   // and by default CBLOF runs the sequential Squeezer
+   @Test
+   public void testParallelSqueezerIsReproducible(){
+      // the discretizer seeds its k-means from an unseeded random, so the rows are discretized once up front and every
+      // fit below sees the same categorical rows
+      KMeansDiscretizer discretizer = new KMeansDiscretizer();
+      discretizer.setMaxLevelCount(10);
+      DataFrame data = discretizer.fitAndTransform(TestData.twoClusters(random, 2000, 10));
+
+      List<Integer> taskCounts = Collections.synchronizedList(new ArrayList<>());
+      ForkJoinPool pool = new ForkJoinPool(4) {
+         @Override
+         public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks){
+            taskCounts.add(tasks.size());
+            return super.invokeAll(tasks);
+         }
+      };
+
+      try {
+         CBLOF pooled = new CBLOF();
+         pooled.setSqueezerBatchSize(100);
+         pooled.setExecutor(pool);
+         DataFrame pooledData = pooled.fitAndTransform(data);
+
+         // the Squeezer runs before the rows are scored, with one call per mini-batch
+         assertThat(taskCounts.size()).isGreaterThan(20);
+         assertThat(taskCounts.subList(0, 20)).allMatch(count -> count > 1);
+
+         CBLOF inline = new CBLOF();
+         inline.setSqueezerBatchSize(100);
+         inline.setExecutor(null);
+         assertSameClusters(pooledData, inline.fitAndTransform(data));
+      } finally {
+         pool.shutdown();
+      }
+
+      CBLOF sequential = new CBLOF();
+      sequential.setParallel(false);
+      DataFrame sequentialData = sequential.fitAndTransform(data);
+
+      CBLOF defaults = new CBLOF();
+      assertThat(defaults.isParallel()).isTrue();
+      assertSameClusters(sequentialData, defaults.fitAndTransform(data));
+   }
+
+   private static void assertSameClusters(DataFrame expected, DataFrame actual){
+      for(int i = 0; i < expected.rowCount(); ++i){
+         assertThat(actual.row(i).getCategoricalTargetCell("cluster")).isEqualTo(expected.row(i).getCategoricalTargetCell("cluster"));
+         assertThat(actual.row(i).getTargetCell("CBLOF")).isEqualTo(expected.row(i).getTargetCell("CBLOF"));
+      }
+   }
 }
@@ -0,0 +1,73 @@
+package com.github.chen0040.lof;
+
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+
+public class DistanceKernelsUnitTest {
+
+   private static Random random = new Random(3);
+
+   private static double[] randomBlock(int rows, int dimension){
+      double[] block = new double[rows * dimension];
+      for(int i=0; i < block.length; ++i){
+         block[i] = random.nextGaussian();
+      }
+      return block;
+   }
+
+   @Test
+   public void test_kernels_match_naive_loops(){
+      for(int dimension = 1; dimension <= 9; ++dimension) {
+         double[] x = randomBlock(2, dimension);
+
+         double squared = 0, manhattan = 0, chebyshev = 0, dot = 0, n1 = 0, n2 = 0;
+         for(int i=0; i < dimension; ++i){
+            double a = x[i], b = x[dimension + i];
+            squared += (a - b) * (a - b);
+            manhattan += Math.abs(a - b);
+            chebyshev = Math.max(chebyshev, Math.abs(a - b));
+            dot += a * b;
+            n1 += a * a;
+            n2 += b * b;
+         }
+
+         assertThat(DistanceKernels.squaredEuclidean(x, 0, x, dimension, dimension)).isCloseTo(squared, within(1e-12));
+         assertThat(DistanceKernels.manhattan(x, 0, x, dimension, dimension)).isCloseTo(manhattan, within(1e-12));
+         assertThat(DistanceKernels.chebyshev(x, 0, x, dimension, dimension)).isEqualTo(chebyshev);
+         assertThat(DistanceKernels.cosine(x, 0, x, dimension, dimension)).isCloseTo(1 - dot / Math.sqrt(n1 * n2), within(1e-12));
+      }
+   }
+
+   @Test
+   public void test_batched_kernel_is_identical_to_pairwise(){
+      for(int dimension = 1; dimension <= 9; ++dimension) {
+         double[] query = randomBlock(1, dimension);
+         double[] block = randomBlock(7, dimension);
+         double[] out = new double[7];
+
+         DistanceKernels.squaredEuclidean(query, 0, block, 0, 7, dimension, out);
+         for(int r=0; r < 7; ++r){
+            assertThat(out[r]).isEqualTo(DistanceKernels.squaredEuclidean(block, r * dimension, query, 0, dimension));
+         }
+      }
+   }
+
+   @Test
+   public void test_early_abandon(){
+      for(int dimension = 1; dimension <= 70; ++dimension) {
+         double[] x = randomBlock(2, dimension);
+         double exact = DistanceKernels.squaredEuclidean(x, 0, x, dimension, dimension);
+
+         assertThat(DistanceKernels.squaredEuclidean(x, 0, x, dimension, dimension, Double.POSITIVE_INFINITY)).isEqualTo(exact);
+         assertThat(DistanceKernels.squaredEuclidean(x, 0, x, dimension, dimension, exact)).isEqualTo(exact);
+         assertThat(DistanceKernels.squaredEuclidean(x, 0, x, dimension, dimension, exact / 2)).isGreaterThan(exact / 2);
+      }
+   }
+
+}
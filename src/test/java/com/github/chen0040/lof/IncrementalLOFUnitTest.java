@@ -0,0 +1,121 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.BasicDataFrame;
+import com.github.chen0040.data.frame.BasicDataRow;
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataRow;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+
+public class IncrementalLOFUnitTest {
+
+   private static Random random = new Random(42);
+
+   // compares the incremental scores of the live handles against a batch fit over the same rows
+   private static void assertMatchesBatch(IncrementalLOF lof, List<Integer> handles, int k){
+      DataFrame batch = new BasicDataFrame();
+      for(Integer handle : handles){
+         batch.addRow(lof.row(handle));
+      }
+      batch.lock();
+
+      NeighborhoodCache cache = new NeighborhoodCache(new BruteForceIndex(DataMatrix.of(batch), null), k, k);
+      for(int i=0; i < handles.size(); ++i){
+         assertThat(lof.score(handles.get(i))).isCloseTo(cache.local_outlier_factor(i, k), within(1e-9));
+      }
+   }
+
+   @Test
+   public void test_insert_and_delete_match_batch_lof(){
+      DataFrame data = TestData.twoClusters(random, 80);
+      int k = 5;
+
+      IncrementalLOF lof = new IncrementalLOF(k, 0);
+      List<Integer> handles = new ArrayList<>();
+      for(int i=0; i < 60; ++i){
+         handles.add(lof.insert(data.row(i)));
+      }
+      assertMatchesBatch(lof, handles, k);
+
+      for(int i=0; i < 20; ++i){
+         int handle = handles.remove(random.nextInt(handles.size()));
+         lof.delete(handle);
+      }
+      assertThat(lof.size()).isEqualTo(40);
+      assertMatchesBatch(lof, handles, k);
+
+      // freed slots are reused by later inserts
+      for(int i=60; i < 80; ++i){
+         handles.add(lof.insert(data.row(i)));
+      }
+      assertMatchesBatch(lof, handles, k);
+   }
+
+   @Test
+   public void test_sliding_window(){
+      DataFrame data = TestData.twoClusters(random, 100);
+      int k = 4;
+
+      IncrementalLOF lof = new IncrementalLOF(k, 30);
+      List<Integer> handles = new ArrayList<>();
+      for(int i=0; i < data.rowCount(); ++i){
+         handles.add(lof.insert(data.row(i)));
+         if(i == 50){
+            lof.delete(handles.get(45));
+         }
+      }
+      assertThat(lof.size()).isEqualTo(30);
+
+      List<Integer> live = new ArrayList<>();
+      for(int i=70; i < data.rowCount(); ++i){
+         DataRow row = data.row(i);
+         int handle = handles.get(i);
+         assertThat(lof.contains(handle)).isTrue();
+         assertThat(lof.row(handle)).isSameAs(row);
+         live.add(handle);
+      }
+      assertMatchesBatch(lof, live, k);
+   }
+
+   // a shorter row in a recycled slot reads as padded with zeros, not with the tail of the row it replaced
+   @Test
+   public void test_short_row_in_recycled_slot(){
+      DataFrame data = TestData.twoClusters(random, 30);
+      int k = 4;
+
+      DataRow shortRow = new BasicDataRow();
+      shortRow.setCell("c1", 2.0);
+      DataRow paddedRow = new BasicDataRow();
+      paddedRow.setCell("c1", 2.0);
+      paddedRow.setCell("c2", 0.0);
+
+      IncrementalLOF shortLOF = new IncrementalLOF(k, 0);
+      IncrementalLOF paddedLOF = new IncrementalLOF(k, 0);
+      List<Integer> handles = new ArrayList<>();
+      for(int i=0; i < data.rowCount(); ++i){
+         handles.add(shortLOF.insert(data.row(i)));
+         paddedLOF.insert(data.row(i));
+      }
+      int freed = handles.remove(3);
+      shortLOF.delete(freed);
+      paddedLOF.delete(freed);
+
+      int handle = shortLOF.insert(shortRow);
+      assertThat(handle).isEqualTo(freed);
+      assertThat(paddedLOF.insert(paddedRow)).isEqualTo(freed);
+      handles.add(handle);
+
+      for(int h : handles){
+         assertThat(shortLOF.score(h)).isEqualTo(paddedLOF.score(h));
+      }
+   }
+
+}
@@ -9,8 +9,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
 import java.util.Random;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 
 /**
  * Created by xschen on 19/5/2017.
@@ -83,4 +86,62 @@ public class LDOFUnitTest {
 
 
    }
+
+   // the pruned top-n search returns the same rows as ranking the LDOF of every row
+   @Test
+   public void testTopOutliersMatchFullRanking(){
+      DataFrame data = TestData.twoClusters(new Random(42), 3000, 20);
+      int k = 10, n = 25;
+
+      int m = data.rowCount();
+      double[][] x = new double[m][];
+      for(int i = 0; i < m; ++i) x[i] = data.row(i).toArray();
+
+      double[] ldof = new double[m];
+      Integer[] order = new Integer[m];
+      for(int p = 0; p < m; ++p){
+         order[p] = p;
+         Integer[] byDistance = new Integer[m];
+         double[] distance = new double[m];
+         for(int q = 0; q < m; ++q){
+            byDistance[q] = q;
+            distance[q] = q == p ? Double.POSITIVE_INFINITY : Math.hypot(x[p][0] - x[q][0], x[p][1] - x[q][1]);
+         }
+         Arrays.sort(byDistance, (a, b) -> Double.compare(distance[a], distance[b]));
+
+         double knnDistance = 0, innerDistance = 0;
+         for(int a = 0; a < k; ++a){
+            knnDistance += distance[byDistance[a]];
+            for(int b = a + 1; b < k; ++b){
+               double[] u = x[byDistance[a]], v = x[byDistance[b]];
+               innerDistance += Math.hypot(u[0] - v[0], u[1] - v[1]);
+            }
+         }
+         ldof[p] = (knnDistance / k) / (2 * innerDistance / (k * (k - 1)));
+      }
+      Arrays.sort(order, (a, b) -> Double.compare(ldof[b], ldof[a]));
+
+      LDOF method = new LDOF();
+      method.setMinPts(k);
+      method.setAnomalyCount(n);
+      DataFrame learnedData = method.fitAndTransform(data);
+
+      int[] top = method.topOutliers(n);
+      assertThat(top).hasSize(n);
+      for(int i = 0; i < n; ++i){
+         assertThat(top[i]).isEqualTo(order[i]);
+      }
+      for(int i = 0; i < m; ++i){
+         boolean expected = Arrays.asList(order).subList(0, n).contains(i);
+         assertThat(learnedData.row(i).categoricalTarget()).isEqualTo(expected ? "1" : "0");
+      }
+
+      // the same on the calling thread and without the pair distance cache
+      LDOF uncached = new LDOF();
+      uncached.setMinPts(k);
+      uncached.setPairDistanceCacheSize(0);
+      uncached.setExecutor(null);
+      uncached.fitAndTransform(data);
+      assertThat(uncached.topOutliers(n)).containsExactly(top);
+   }
 }
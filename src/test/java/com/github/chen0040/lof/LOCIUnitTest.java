@@ -9,8 +9,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 
 /**
  * Created by xschen on 19/5/2017.
@@ -83,4 +87,124 @@ public class LOCIUnitTest {
 
 
    }
+
+   // the incremental sweep over sorted distances should flag exactly the rows the direct MDEF definition flags
+   @Test
+   public void testMatchesDirectEvaluation(){
+      DataFrame data = TestData.twoClusters(new Random(42), 120, 5);
+
+      LOCI method = new LOCI();
+      DataFrame learnedData = method.fitAndTransform(data);
+      PackedDistanceMatrix distances = method.getPackedDistanceMatrix();
+
+      int m = data.rowCount();
+      int flagged = 0;
+      for(int i = 0; i < m; ++i){
+         boolean expected = isOutlier(i, distances, method.getAlpha(), method.getKSigma(), method.getR_max());
+         assertThat(learnedData.row(i).categoricalTarget()).isEqualTo(expected ? "1" : "0");
+         if(expected) flagged++;
+      }
+      logger.info("flagged: {}", flagged);
+
+      // the deprecated dense view copies out the same distances
+      double[][] dense = method.getDistanceMatrix();
+      for(int i = 0; i < m; ++i){
+         for(int j = 0; j < m; ++j){
+            assertThat(dense[i][j]).isEqualTo(distances.get(i, j));
+         }
+      }
+      assertThat(method.get_r_neighbors(0, 1.0, dense)).isEqualTo(method.get_r_neighbors(0, 1.0, distances));
+
+      // the recorded ratios label the batch for any other kSigma without fitting again
+      LOCI looser = new LOCI();
+      looser.setKSigma(2);
+      DataFrame looserData = looser.fitAndTransform(data);
+      for(int i = 0; i < m; ++i){
+         double ratio = learnedData.row(i).getTargetCell("LOCI");
+         assertThat(looserData.row(i).getTargetCell("LOCI")).isEqualTo(ratio);
+         assertThat(looserData.row(i).categoricalTarget()).isEqualTo(ratio > 2 ? "1" : "0");
+         assertThat(learnedData.row(i).getTargetCell("LOCI_radius")).isBetween(0.0, distances.maxDistance());
+      }
+   }
+
+   // the distance matrix and the sorted neighbor distances share one budget: whatever does not fit in what is left is
+   // mapped; the sorted distances keep only the pairs the MDEF sweep reads
+   @Test
+   public void testMemoryBudgetCoversSortedDistances(){
+      DataFrame data = TestData.gaussian(random, 100, 2);
+      int m = data.rowCount();
+      long triangle = PackedDistanceMatrix.entryCount(m) * 8;
+
+      LOCI method = new LOCI();
+      double[] expected = new double[m];
+      DataFrame learnedData = method.fitAndTransform(data);
+      for(int i = 0; i < m; ++i){
+         expected[i] = learnedData.row(i).getTargetCell("LOCI");
+      }
+
+      PackedDistanceMatrix distances = method.getPackedDistanceMatrix();
+      long sorted = 0;
+      for(int i = 0; i < m; ++i){
+         for(int j = 0; j < m; ++j){
+            if(j != i && distances.get(i, j) < method.neighborReach()) sorted += 8;
+         }
+      }
+      assertThat(sorted).isLessThan((long) m * (m - 1) * 8);
+
+      method.setDistanceMemoryBudget(triangle + sorted);
+      learnedData = method.fitAndTransform(data);
+      assertThat(method.getPackedDistanceMatrix().isMapped()).isFalse();
+      try(SortedDistances D = method.sortedDistances()){
+         assertThat(D.heapBytes()).isEqualTo(sorted);
+      }
+
+      method.setDistanceMemoryBudget(triangle + sorted - 1);
+      learnedData = method.fitAndTransform(data);
+      assertThat(method.getPackedDistanceMatrix().isMapped()).isFalse();
+      try(SortedDistances D = method.sortedDistances()){
+         assertThat(D.heapBytes()).isEqualTo(0);
+      }
+
+      method.setDistanceMemoryBudget(triangle - 1);
+      DataFrame mappedData = method.fitAndTransform(data);
+      assertThat(method.getPackedDistanceMatrix().isMapped()).isTrue();
+      try(SortedDistances D = method.sortedDistances()){
+         assertThat(D.heapBytes()).isEqualTo(0);
+      }
+
+      for(int i = 0; i < m; ++i){
+         assertThat(learnedData.row(i).getTargetCell("LOCI")).isEqualTo(expected[i]);
+         assertThat(mappedData.row(i).getTargetCell("LOCI")).isEqualTo(expected[i]);
+      }
+      method.getPackedDistanceMatrix().close();
+   }
+
+   private static int count(int i, double radius, PackedDistanceMatrix distances, double r_max){
+      int count = 1;
+      for(int j = 0; j < distances.size(); ++j){
+         double distance = distances.get(i, j);
+         if(j != i && distance < r_max && distance < radius) count++;
+      }
+      return count;
+   }
+
+   private static boolean isOutlier(int i, PackedDistanceMatrix distances, double alpha, double kSigma, double r_max){
+      List<Integer> D_i = new ArrayList<>();
+      for(int j = 0; j < distances.size(); ++j){
+         if(j != i && distances.get(i, j) < r_max) D_i.add(j);
+      }
+      int n_pi_r = D_i.size() + 1;
+      for(int r_index : D_i){
+         double alphar = alpha * distances.get(i, r_index);
+         double sum = 0;
+         for(int j : D_i) sum += count(j, alphar, distances, r_max);
+         double nhat = sum / n_pi_r;
+         double squares = 0;
+         for(int j : D_i) squares += Math.pow(count(j, alphar, distances, r_max) - nhat, 2);
+         double sigma = Math.sqrt(squares / n_pi_r);
+         double MDEF = 1 - count(i, alphar, distances, r_max) / nhat;
+         if(MDEF > kSigma * sigma / nhat) return true;
+      }
+      return false;
+   }
 }
@@ -4,12 +4,18 @@ package com.github.chen0040.lof;
 import com.github.chen0040.data.evaluators.BinaryClassifierEvaluator;
 import com.github.chen0040.data.frame.DataFrame;
 import com.github.chen0040.data.frame.DataQuery;
+import com.github.chen0040.data.frame.DataRow;
 import com.github.chen0040.data.frame.Sampler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.annotations.Test;
 
 import java.util.Random;
+import java.util.function.BiFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
 
 
 /**
@@ -87,4 +93,72 @@ public class LOFUnitTest {
 
 
    }
+
+   @Test
+   public void testScoreAll(){
+      DataFrame training = TestData.uniform(random, 200);
+      DataFrame test = TestData.uniform(random, 500);
+
+      LOF method = new LOF();
+      method.fitAndTransform(training);
+      double[] fitted = method.getScores().clone();
+
+      double[] scores = method.scoreAll(test);
+      assertThat(method.getScores()).containsExactly(fitted);
+      double[][] vectors = new double[test.rowCount()][];
+      for(int i = 0; i < test.rowCount(); ++i){
+         assertThat(scores[i]).isCloseTo(method.evaluate(test.row(i)), within(1e-12));
+         vectors[i] = test.row(i).toArray();
+      }
+      assertThat(method.score(vectors)).containsExactly(scores);
+   }
+
+   @Test
+   public void testFitScoresEachRowOnce(){
+      LOF method = new LOF();
+      DataFrame learnedData = method.fitAndTransform(TestData.twoClusters(random, 300));
+
+      assertThat(method.getScores()).hasSize(learnedData.rowCount());
+      for(int i = 0; i < learnedData.rowCount(); ++i){
+         double score = learnedData.row(i).getTargetCell("LOF");
+         assertThat(score).isCloseTo(method.evaluate(learnedData.row(i)), within(1e-12));
+         assertThat(learnedData.row(i).categoricalTarget()).isEqualTo(score > method.getThreshold() ? "1" : "0");
+         assertThat(learnedData.row(i).toArray()).hasSize(2);
+      }
+   }
+
+   @Test
+   public void testPrimitiveDistanceMeasure(){
+      DataFrame training = TestData.uniform(random, 200);
+      DataFrame test = TestData.uniform(random, 100);
+
+      LOF rows = new LOF();
+      rows.setDistanceMeasure((DataRow t1, DataRow t2) -> {
+         double[] x1 = t1.toArray(), x2 = t2.toArray();
+         return Math.abs(x1[0] - x2[0]) + Math.abs(x1[1] - x2[1]);
+      });
+      rows.fitAndTransform(training);
+
+      LOF primitive = new LOF();
+      primitive.setVectorDistanceMeasure((x1, offset1, x2, offset2, dimension) ->
+              Math.abs(x1[offset1] - x2[offset2]) + Math.abs(x1[offset1 + 1] - x2[offset2 + 1]));
+      primitive.fitAndTransform(training);
+
+      assertThat(primitive.getScores()).containsExactly(rows.getScores());
+
+      // unlike a measure on DataRows, a primitive one also scores raw vectors
+      double[] scores = primitive.scoreAll(test);
+      double[][] vectors = new double[test.rowCount()][];
+      for(int i = 0; i < test.rowCount(); ++i){
+         vectors[i] = test.row(i).toArray();
+      }
+      assertThat(primitive.score(vectors)).containsExactly(scores);
+      assertThatThrownBy(() -> rows.score(vectors)).isInstanceOf(IllegalStateException.class);
+
+      // a null BiFunction still resets to the built-in euclidean distance
+      rows.setDistanceMeasure(null);
+      BiFunction<DataRow, DataRow, Double> reset = rows.getDistanceMeasure();
+      assertThat(reset).isNull();
+      assertThat(rows.getVectorDistanceMeasure()).isNull();
+   }
 }
@@ -0,0 +1,196 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.BasicDataFrame;
+import com.github.chen0040.data.frame.BasicDataRow;
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+
+public class NeighborIndexUnitTest {
+
+   private static final Logger logger = LoggerFactory.getLogger(NeighborIndexUnitTest.class);
+
+   private static Random random = new Random(7);
+
+   // c2 is wider than c1, and c3 takes a few integer values so that distances tie
+   private static DataFrame sample(int count){
+      return TestData.sample(count, 3, (name, index) -> name.equals("c3") ? (double) random.nextInt(5) : random.nextGaussian() * (name.equals("c2") ? 2 : 1));
+   }
+
+   private static void assertSameDistances(Neighbors actual, Neighbors expected){
+      assertThat(actual.size()).isEqualTo(expected.size());
+      for(int j=0; j < expected.size(); ++j){
+         assertThat(actual.distance(j)).isCloseTo(expected.distance(j), within(1e-12));
+      }
+   }
+
+   private static void assertMatchesBruteForce(NeighborIndex index, DataMatrix data, DistanceMeasure distanceMeasure){
+      NeighborIndex bruteForce = new BruteForceIndex(data, distanceMeasure);
+      for(int i=0; i < data.rowCount(); ++i){
+         for(int k : new int[] { 1, 5, 12 }) {
+            assertSameDistances(index.knn(i, k), bruteForce.knn(i, k));
+         }
+         assertSameDistances(index.range(i, 1.5), bruteForce.range(i, 1.5));
+      }
+   }
+
+   @Test
+   public void test_kd_tree(){
+      DataMatrix data = DataMatrix.of(sample(300));
+      assertMatchesBruteForce(new KDTree(data), data, null);
+   }
+
+   @Test
+   public void test_vp_tree(){
+      DataMatrix data = DataMatrix.of(sample(300));
+      DistanceMeasure manhattan = (x1, offset1, x2, offset2, dimension) -> {
+         double distance = 0;
+         for(int d=0; d < dimension; ++d){
+            distance += Math.abs(x1[offset1 + d] - x2[offset2 + d]);
+         }
+         return distance;
+      };
+      assertMatchesBruteForce(new VPTree(data, manhattan), data, manhattan);
+      assertMatchesBruteForce(new VPTree(data, null), data, null);
+   }
+
+   @Test
+   public void test_hnsw_recall(){
+      DataFrame frame = new BasicDataFrame();
+      for(int i=0; i < 2000; ++i){
+         DataRow row = new BasicDataRow();
+         for(int d = 1; d <= 32; ++d){
+            row.setCell("c" + d, random.nextGaussian());
+         }
+         frame.addRow(row);
+      }
+      frame.lock();
+      DataMatrix data = DataMatrix.of(frame);
+
+      HNSW factory = new HNSW();
+      factory.setRecallSampleSize(200);
+      NeighborIndex index = factory.build(data, null);
+      assertThat(factory.getMeasuredRecall()).isGreaterThan(0.9);
+
+      // the reported distances are exact for the neighbors that are found
+      Neighbors neighbors = index.knn(0, 10);
+      assertThat(neighbors.size()).isEqualTo(10);
+      for(int j=0; j < neighbors.size(); ++j){
+         double[] x1 = data.row(0).toArray();
+         double[] x2 = data.row(neighbors.index(j)).toArray();
+         double distance = 0;
+         for(int d=0; d < x1.length; ++d){
+            distance += (x1[d] - x2[d]) * (x1[d] - x2[d]);
+         }
+         assertThat(neighbors.distance(j)).isCloseTo(Math.sqrt(distance), within(1e-9));
+      }
+
+      assertSameDistances(index.range(0, 5), new BruteForceIndex(data, null).range(0, 5));
+   }
+
+   // rows scattered around a few random centers, so that every row has close neighbors
+   private static DataMatrix clusters(int count, int dimension, boolean binary){
+      double[][] centers = new double[8][dimension];
+      for(double[] center : centers){
+         for(int d=0; d < dimension; ++d){
+            center[d] = binary ? (random.nextDouble() < 0.3 ? 1 : 0) : random.nextGaussian() * 4;
+         }
+      }
+      DataFrame frame = new BasicDataFrame();
+      for(int i=0; i < count; ++i){
+         double[] center = centers[random.nextInt(centers.length)];
+         DataRow row = new BasicDataRow();
+         for(int d=0; d < dimension; ++d){
+            double value = binary ? (random.nextDouble() < 0.1 ? 1 - center[d] : center[d]) : center[d] + random.nextGaussian();
+            row.setCell("c" + d, value);
+         }
+         frame.addRow(row);
+      }
+      frame.lock();
+      return DataMatrix.of(frame);
+   }
+
+   @Test
+   public void test_lsh_cosine(){
+      DataMatrix data = clusters(3000, 16, false);
+      AtomicLong evaluations = new AtomicLong();
+      DistanceMeasure cosine = (x1, offset1, x2, offset2, dimension) -> {
+         evaluations.incrementAndGet();
+         double dot = 0, norm1 = 0, norm2 = 0;
+         for(int d=0; d < dimension; ++d){
+            dot += x1[offset1 + d] * x2[offset2 + d];
+            norm1 += x1[offset1 + d] * x1[offset1 + d];
+            norm2 += x2[offset2 + d] * x2[offset2 + d];
+         }
+         return 1 - dot / Math.sqrt(norm1 * norm2);
+      };
+
+      LSH factory = new LSH(LSHFamily.COSINE, 8, 8);
+      NeighborIndex index = factory.build(data, cosine);
+
+      evaluations.set(0);
+      int queries = 200;
+      double recall = NeighborIndex.recall(index, new BruteForceIndex(data, cosine), 10, queries, 42);
+      long lshEvaluations = evaluations.get() - (long) queries * (data.rowCount() - 1);
+      logger.info("cosine LSH recall@10: {}, {} distance evaluations per query", recall, lshEvaluations / queries);
+      assertThat(recall).isGreaterThan(0.9);
+      assertThat(lshEvaluations).isLessThan((long) queries * data.rowCount() / 4);
+   }
+
+   @Test
+   public void test_lsh_euclidean_and_jaccard(){
+      DataMatrix data = clusters(3000, 16, false);
+      LSH euclidean = new LSH(LSHFamily.EUCLIDEAN);
+      euclidean.setRecallSampleSize(200);
+      euclidean.build(data, null);
+      assertThat(euclidean.getMeasuredRecall()).isGreaterThan(0.85);
+
+      DataMatrix sets = clusters(3000, 64, true);
+      DistanceMeasure jaccard = (x1, offset1, x2, offset2, dimension) -> {
+         double intersection = 0, union = 0;
+         for(int d=0; d < dimension; ++d){
+            boolean in1 = x1[offset1 + d] != 0, in2 = x2[offset2 + d] != 0;
+            if(in1 && in2) intersection++;
+            if(in1 || in2) union++;
+         }
+         return union == 0 ? 0 : 1 - intersection / union;
+      };
+      LSH minHash = new LSH(LSHFamily.JACCARD, 8, 4);
+      minHash.setRecallSampleSize(200);
+      minHash.build(sets, jaccard);
+      logger.info("recall@10: {} euclidean, {} jaccard", euclidean.getMeasuredRecall(), minHash.getMeasuredRecall());
+      assertThat(minHash.getMeasuredRecall()).isGreaterThan(0.8);
+   }
+
+   // the LSH tables sort by key with the rows of a bucket in row order, as a stable sort of the rows would
+   @Test
+   public void test_lsh_sort_by_key(){
+      Random keys = new Random(11);
+      for(int size : new int[] { 0, 1, 15, 16, 1000 }){
+         long[] key = new long[size];
+         for(int i=0; i < size; ++i){
+            key[i] = keys.nextInt(size / 10 + 1) - size / 20;
+         }
+         long[] original = key.clone();
+
+         int[] rows = LSHIndex.sortByKey(key);
+         for(int i=0; i < size; ++i){
+            assertThat(key[i]).isEqualTo(original[rows[i]]);
+            if(i > 0){
+               assertThat(key[i]).isGreaterThanOrEqualTo(key[i - 1]);
+               if(key[i] == key[i - 1]) assertThat(rows[i]).isGreaterThan(rows[i - 1]);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,55 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataFrame;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+
+public class NeighborhoodCacheUnitTest {
+
+   private static Random random = new Random(42);
+
+   @Test
+   public void test_cached_lof_matches_brute_force(){
+      DataFrame data = TestData.twoClusters(random, 40);
+
+      LOF lof = new LOF();
+      NeighborhoodCache cache = new NeighborhoodCache(new BruteForceIndex(DataMatrix.of(data), null), 3, 10);
+
+      for(int i=0; i < data.rowCount(); ++i){
+         for(int k=3; k <= 10; ++k){
+            double expected = lof.local_outlier_factor(data, data.row(i), k);
+            assertThat(cache.local_outlier_factor(i, k)).isCloseTo(expected, within(1e-9));
+         }
+      }
+   }
+
+   // the sweep over all k of a wide range gives the LOF of each k, and the max of them for a row of the batch or a query
+   @Test
+   public void test_wide_range_sweep(){
+      DataFrame data = TestData.twoClusters(random, 60);
+
+      LOF lof = new LOF();
+      NeighborhoodCache cache = new NeighborhoodCache(new BruteForceIndex(DataMatrix.of(data), null), 10, 50);
+
+      for(int i=0; i < data.rowCount(); ++i){
+         double max = Double.NEGATIVE_INFINITY;
+         for(int k=10; k <= 50; ++k){
+            max = Math.max(max, cache.local_outlier_factor(i, k));
+         }
+         assertThat(cache.score(i)).isEqualTo(max);
+         assertThat(cache.score(cache.getIndex().matrix(), i)).isEqualTo(max);
+
+         for(int k : new int[] { 10, 27, 50 }){
+            double expected = lof.local_outlier_factor(data, data.row(i), k);
+            assertThat(cache.local_outlier_factor(i, k)).isCloseTo(expected, within(1e-9));
+         }
+      }
+   }
+
+}
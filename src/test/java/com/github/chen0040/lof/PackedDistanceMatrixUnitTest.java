@@ -0,0 +1,116 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataRow;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+
+public class PackedDistanceMatrixUnitTest {
+
+   private static Random random = new Random(42);
+
+   private static void assertMatches(PackedDistanceMatrix distances, DataFrame data, BiFunction<DataRow, DataRow, Double> distanceMeasure, double tolerance){
+      int m = data.rowCount();
+      assertThat(distances.size()).isEqualTo(m);
+
+      double max = 0;
+      for(int i=0; i < m; ++i){
+         assertThat(distances.get(i, i)).isEqualTo(0);
+         for(int j=i+1; j < m; ++j){
+            double expected = DistanceMeasureService.getDistance(data, data.row(i), data.row(j), distanceMeasure);
+            assertThat(distances.get(i, j)).isCloseTo(expected, within(tolerance));
+            assertThat(distances.get(j, i)).isEqualTo(distances.get(i, j));
+            max = Math.max(max, expected);
+         }
+      }
+      assertThat(distances.maxDistance()).isCloseTo(max, within(1e-12));
+   }
+
+   @Test
+   public void test_heap_and_mapped_storage(){
+      DataFrame data = TestData.gaussian(random, 500, 3);
+      DataMatrix matrix = DataMatrix.of(data);
+
+      PackedDistanceMatrix heap = PackedDistanceMatrix.compute(matrix, null, PackedDistanceMatrix.Precision.DOUBLE, Long.MAX_VALUE, ParallelRows.sharedExecutor());
+      assertThat(heap.isMapped()).isFalse();
+      assertMatches(heap, data, null, 1e-12);
+
+      PackedDistanceMatrix floats = PackedDistanceMatrix.compute(matrix, null, PackedDistanceMatrix.Precision.FLOAT, Long.MAX_VALUE, null);
+      assertMatches(floats, data, null, 1e-5);
+
+      PackedDistanceMatrix mapped = PackedDistanceMatrix.compute(matrix, null, PackedDistanceMatrix.Precision.DOUBLE, 0, ParallelRows.sharedExecutor());
+      assertThat(mapped.isMapped()).isTrue();
+      assertMatches(mapped, data, null, 1e-12);
+      mapped.close();
+
+      PackedDistanceMatrix mappedFloats = PackedDistanceMatrix.compute(matrix, null, PackedDistanceMatrix.Precision.FLOAT, 0, null);
+      assertMatches(mappedFloats, data, null, 1e-5);
+      mappedFloats.close();
+
+      // half precision keeps 11 significant bits, so distances below 16 are within 2^-8 of the exact ones
+      PackedDistanceMatrix halves = PackedDistanceMatrix.compute(matrix, null, PackedDistanceMatrix.Precision.HALF, Long.MAX_VALUE, null);
+      assertThat(halves.isMapped()).isFalse();
+      assertMatches(halves, data, null, 1.0 / 256);
+
+      PackedDistanceMatrix mappedHalves = PackedDistanceMatrix.compute(matrix, null, PackedDistanceMatrix.Precision.HALF, 0, null);
+      assertThat(mappedHalves.isMapped()).isTrue();
+      for(int i=0; i < data.rowCount(); ++i){
+         for(int j=0; j < data.rowCount(); ++j){
+            assertThat(mappedHalves.get(i, j)).isEqualTo(halves.get(i, j));
+         }
+      }
+      mappedHalves.close();
+   }
+
+   @Test
+   public void test_half_precision_conversion(){
+      // every finite half reads back as a float that converts to the same half
+      for(int bits = 0; bits < 0x10000; ++bits){
+         short half = (short) bits;
+         if((bits & 0x7c00) == 0x7c00) continue;
+         assertThat(PackedDistanceMatrix.toHalf(PackedDistanceMatrix.toFloat(half))).isEqualTo(half);
+      }
+
+      assertThat(PackedDistanceMatrix.toHalf(1.0)).isEqualTo((short) 0x3c00);
+      assertThat(PackedDistanceMatrix.toFloat(PackedDistanceMatrix.toHalf(PackedDistanceMatrix.HALF_MAX))).isEqualTo(65504f);
+      assertThat(PackedDistanceMatrix.toHalf(Math.pow(2, -24))).isEqualTo((short) 0x0001);
+      assertThat(PackedDistanceMatrix.toHalf(Math.pow(2, -26))).isEqualTo((short) 0);
+      assertThat(PackedDistanceMatrix.toFloat(PackedDistanceMatrix.toHalf(70000))).isEqualTo(Float.POSITIVE_INFINITY);
+
+      // ties round to the even significand: 1 + 2^-11 lies halfway between 1 and 1 + 2^-10
+      assertThat(PackedDistanceMatrix.toHalf(1 + Math.pow(2, -11))).isEqualTo((short) 0x3c00);
+      assertThat(PackedDistanceMatrix.toHalf(1 + 3 * Math.pow(2, -11))).isEqualTo((short) 0x3c02);
+      assertThat(PackedDistanceMatrix.Precision.HALF.round(0.1)).isCloseTo(0.1, within(0.1 / 2048));
+   }
+
+   @Test
+   public void test_half_precision_rejects_large_distances(){
+      DataFrame data = TestData.gaussian(random, 10, 3);
+      DataMatrix matrix = DataMatrix.of(data);
+      assertThatThrownBy(() -> PackedDistanceMatrix.compute(matrix, (x1, offset1, x2, offset2, dimension) -> 1e5, PackedDistanceMatrix.Precision.HALF, Long.MAX_VALUE, null))
+              .isInstanceOf(IllegalArgumentException.class);
+   }
+
+   @Test
+   public void test_custom_distance(){
+      DataFrame data = TestData.gaussian(random, 100, 3);
+      BiFunction<DataRow, DataRow, Double> manhattan = (a, b) -> {
+         double[] x = a.toArray(), y = b.toArray();
+         double sum = 0;
+         for(int d=0; d < x.length; ++d) sum += Math.abs(x[d] - y[d]);
+         return sum;
+      };
+
+      PackedDistanceMatrix distances = PackedDistanceMatrix.compute(DataMatrix.of(data), DistanceMeasure.of(manhattan), PackedDistanceMatrix.Precision.DOUBLE, Long.MAX_VALUE, ParallelRows.sharedExecutor());
+      assertMatches(distances, data, manhattan, 1e-12);
+   }
+
+}
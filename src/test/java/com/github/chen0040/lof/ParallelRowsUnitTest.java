@@ -0,0 +1,36 @@
+package com.github.chen0040.lof;
+
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+
+public class ParallelRowsUnitTest {
+
+   @Test
+   public void test_every_row_is_visited_once(){
+      for(int m : new int[] { 0, 1, 63, 64, 1000, 12345 }){
+         AtomicIntegerArray visits = new AtomicIntegerArray(m);
+         ParallelRows.forEach(ParallelRows.sharedExecutor(), m, (from, to) -> {
+            for(int i = from; i < to; ++i){
+               visits.incrementAndGet(i);
+            }
+         });
+         for(int i=0; i < m; ++i){
+            assertThat(visits.get(i)).isEqualTo(1);
+         }
+      }
+   }
+
+   @Test
+   public void test_failure_in_a_chunk_is_rethrown(){
+      assertThatThrownBy(() -> ParallelRows.forEach(ParallelRows.sharedExecutor(), 10000, (from, to) -> {
+         if(to == 10000) throw new IllegalArgumentException("last chunk");
+      })).isInstanceOf(IllegalArgumentException.class).hasMessage("last chunk");
+   }
+
+}
@@ -0,0 +1,104 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.BasicDataFrame;
+import com.github.chen0040.data.frame.BasicDataRow;
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class StreamingCBLOFUnitTest {
+
+   private static final Logger logger = LoggerFactory.getLogger(StreamingCBLOFUnitTest.class);
+
+   private static Random random = new Random(42);
+
+   // a row of the given pattern: most cells take the pattern's usual value, some its less frequent one
+   private static DataRow row(String pattern){
+      DataRow row = new BasicDataRow();
+      for(int d = 1; d <= 4; ++d){
+         row.setCategoricalCell("c" + d, pattern + (random.nextDouble() < 0.9 ? "0" : "1"));
+      }
+      return row;
+   }
+
+   private static DataRow outlier(){
+      DataRow row = new BasicDataRow();
+      for(int d = 1; d <= 4; ++d){
+         row.setCategoricalCell("c" + d, "z" + random.nextInt(20));
+      }
+      return row;
+   }
+
+   // without decay, the clusters grown one row at a time are the clusters of a batch CBLOF fit on the same rows
+   @Test
+   public void test_matches_batch_clusters_without_decay(){
+      StreamingCBLOF method = new StreamingCBLOF();
+      method.setHalfLife(Double.POSITIVE_INFINITY);
+      method.setSplitInterval(1);
+
+      DataFrame batch = new BasicDataFrame();
+      for(int i = 0; i < 2000; ++i){
+         DataRow row = i % 50 == 0 ? outlier() : row(i % 2 == 0 ? "a" : "b");
+         batch.addRow(row.makeCopy());
+         method.insert(row);
+      }
+      batch.lock();
+
+      CBLOF cblof = new CBLOF();
+      cblof.setParallel(false);
+      DataFrame learnedData = cblof.fitAndTransform(batch);
+
+      int clusterCount = cblof.getClusters().size();
+      assertThat(method.clusterCount()).isEqualTo(clusterCount);
+
+      double[] expected = new double[clusterCount];
+      for(int i = 0; i < learnedData.rowCount(); ++i){
+         expected[Integer.parseInt(learnedData.row(i).getCategoricalTargetCell("cluster"))]++;
+      }
+      double[] actual = new double[clusterCount];
+      for(int c = 0; c < clusterCount; ++c){
+         actual[c] = method.clusterWeight(c);
+      }
+      Arrays.sort(expected);
+      Arrays.sort(actual);
+      assertThat(actual).containsExactly(expected);
+   }
+
+   @Test
+   public void test_decay_forgets_old_rows(){
+      StreamingCBLOF method = new StreamingCBLOF();
+      method.setHalfLife(100);
+      method.setSplitInterval(100);
+
+      for(int i = 0; i < 2000; ++i){
+         method.insert(row("a"));
+      }
+      int clustersOfOldPattern = method.clusterCount();
+      for(int i = 0; i < 2000; ++i){
+         method.insert(row("b"));
+      }
+      assertThat(method.insertCount()).isEqualTo(4000);
+
+      // the weights sum to the geometric series 1 / (1 - 2^(-1/100)), about 145 rows
+      double total = 0;
+      for(int c = 0; c < method.clusterCount(); ++c){
+         total += method.clusterWeight(c);
+      }
+      assertThat(total).isBetween(140.0, 150.0);
+
+      // the clusters of the first pattern have faded out and been dropped, so a row of it would open a cluster of its
+      // own, with nothing in common with the large clusters
+      logger.info("clusters: {} after the first pattern, {} at the end", clustersOfOldPattern, method.clusterCount());
+      assertThat(method.transform(row("a"))).isEqualTo(1.0);
+      assertThat(method.transform(row("b"))).isNotEqualTo(1.0);
+   }
+}
@@ -0,0 +1,59 @@
+package com.github.chen0040.lof;
+
+
+import com.github.chen0040.data.frame.DataFrame;
+import com.github.chen0040.data.frame.DataQuery;
+import com.github.chen0040.data.frame.Sampler;
+
+import java.util.Random;
+import java.util.function.BiFunction;
+
+
+/**
+ * Sample frames shared by the unit tests. Every factory draws from the random it is given, so a seeded test stays
+ * reproducible.
+ */
+final class TestData {
+
+   private TestData(){
+
+   }
+
+   // input columns c1..c{dimension} filled by the generator, and an all-zero anomaly column
+   static DataFrame sample(int count, int dimension, BiFunction<String, Integer, Double> generator){
+      DataQuery.DataTableBuilder table = DataQuery.blank();
+      for(int d = 1; d <= dimension; ++d){
+         table = table.newInput("c" + d);
+      }
+      DataQuery.DataFrameQueryBuilder schema = table.newOutput("anomaly").end();
+
+      Sampler.RowBuilder row = new Sampler().forColumn("anomaly").generate((name, index) -> 0.0);
+      for(int d = 1; d <= dimension; ++d){
+         row = row.forColumn("c" + d).generate(generator);
+      }
+
+      return row.end().sample(schema.build(), count);
+   }
+
+   // two gaussian clusters around (-2, -2) and (2, 2), alternating by row
+   static DataFrame twoClusters(Random random, int count){
+      return twoClusters(random, count, 0);
+   }
+
+   // as twoClusters, except that every outlierEvery-th row is drawn uniformly from [-4, 4]
+   static DataFrame twoClusters(Random random, int count, int outlierEvery){
+      return sample(count, 2, (name, index) -> outlierEvery > 0 && index % outlierEvery == 0
+              ? random.nextDouble() * 8 - 4
+              : random.nextGaussian() * 0.3 + (index % 2 == 0 ? -2 : 2));
+   }
+
+   // rows drawn uniformly from [-4, 4] in two columns
+   static DataFrame uniform(Random random, int count){
+      return sample(count, 2, (name, index) -> random.nextDouble() * 8 - 4);
+   }
+
+   // rows drawn from the standard normal distribution
+   static DataFrame gaussian(Random random, int count, int dimension){
+      return sample(count, dimension, (name, index) -> random.nextGaussian());
+   }
+}
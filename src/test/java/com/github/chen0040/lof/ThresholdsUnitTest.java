@@ -0,0 +1,66 @@
+package com.github.chen0040.lof;
+
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+
+public class ThresholdsUnitTest {
+
+   private static Random random = new Random(42);
+
+   @Test
+   public void test_select_matches_sort(){
+      for(int n : new int[] { 1, 2, 7, 100, 1001 }){
+         double[] values = new double[n];
+         for(int i=0; i < n; ++i){
+            // few distinct values, so that ties are common
+            values[i] = random.nextInt(n / 3 + 1);
+         }
+         double[] sorted = values.clone();
+         Arrays.sort(sorted);
+
+         for(int k=0; k < n; ++k){
+            assertThat(Thresholds.select(values, k)).isEqualTo(sorted[k]);
+            assertThat(Thresholds.kthLargest(values, k)).isEqualTo(sorted[n - 1 - k]);
+         }
+      }
+   }
+
+   @Test
+   public void test_nan_ranks_above_numbers(){
+      double[] values = { 3, Double.NaN, 1, 2 };
+      assertThat(Thresholds.kthLargest(values, 0)).isNaN();
+      assertThat(Thresholds.kthLargest(values, 1)).isEqualTo(3);
+      assertThat(Thresholds.select(values, 0)).isEqualTo(1);
+      assertThat(Thresholds.min(values)).isEqualTo(1);
+      assertThat(Thresholds.nextAbove(values, 1)).isEqualTo(2);
+      assertThat(Thresholds.nextAbove(values, 3)).isEqualTo(3);
+   }
+
+   @Test
+   public void test_sketch_quantiles(){
+      QuantileSketch sketch = new QuantileSketch();
+      int n = 200000;
+      double[] values = new double[n];
+      for(int i=0; i < n; ++i){
+         values[i] = random.nextGaussian();
+         sketch.update(values[i]);
+      }
+      Arrays.sort(values);
+
+      assertThat(sketch.count()).isEqualTo(n);
+      for(double q : new double[] { 0.01, 0.05, 0.5, 0.95, 0.99 }){
+         double estimate = sketch.quantile(q);
+         // rank of the estimate in the stream, compared with the rank asked for
+         int rank = Arrays.binarySearch(values, estimate);
+         assertThat((double) rank / n).isCloseTo(q, within(0.02));
+      }
+   }
+
+}